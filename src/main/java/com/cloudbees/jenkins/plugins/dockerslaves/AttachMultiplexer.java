@@ -0,0 +1,278 @@
+/*
+ * The MIT License
+ *
+ *  Copyright (c) 2015, CloudBees, Inc.
+ *
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  of this software and associated documentation files (the "Software"), to deal
+ *  in the Software without restriction, including without limitation the rights
+ *  to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  copies of the Software, and to permit persons to whom the Software is
+ *  furnished to do so, subject to the following conditions:
+ *
+ *  The above copyright notice and this permission notice shall be included in
+ *  all copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ *  THE SOFTWARE.
+ *
+ */
+
+package com.cloudbees.jenkins.plugins.dockerslaves;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Serve all attach connections to a docker endpoint with a small pool of NIO selector threads, so the number of
+ * master threads doesn't grow with running builds and steps.
+ * <p>
+ * Data is handed to a {@link Handler} on selector thread, which must not block. A handler which can't consume all
+ * available data leaves it in buffer: reading the connection is then paused until {@link Registration#resume()}.
+ */
+public class AttachMultiplexer {
+
+    private static final int POOL_SIZE = Integer.getInteger(AttachMultiplexer.class.getName() + ".poolSize", 2);
+
+    private static final ConcurrentMap<InetSocketAddress, AttachMultiplexer> MULTIPLEXERS = new ConcurrentHashMap<InetSocketAddress, AttachMultiplexer>();
+
+    private final String name;
+
+    private final SelectorThread[] threads = new SelectorThread[POOL_SIZE];
+
+    private final AtomicInteger next = new AtomicInteger();
+
+    private AttachMultiplexer(String name) {
+        this.name = name;
+    }
+
+    public static AttachMultiplexer get(DockerRemoteAPI api) {
+        AttachMultiplexer multiplexer = MULTIPLEXERS.get(api.getAddress());
+        if (multiplexer == null) {
+            multiplexer = new AttachMultiplexer(api.getAddress().toString());
+            AttachMultiplexer existing = MULTIPLEXERS.putIfAbsent(api.getAddress(), multiplexer);
+            if (existing != null) multiplexer = existing;
+        }
+        return multiplexer;
+    }
+
+    public Registration register(DockerRemoteAPI.HijackedConnection connection, int bufferSize, Handler handler) throws IOException {
+        final SocketChannel channel = connection.getChannel();
+        channel.configureBlocking(false);
+
+        final ByteBuffer buffer = ByteBuffer.allocate(Math.max(bufferSize, connection.getPending().remaining()));
+        buffer.put(connection.getPending());
+
+        final Registration registration = new Registration(thread(), channel, buffer, handler);
+        registration.thread.submit(new Runnable() {
+            @Override
+            public void run() {
+                registration.register();
+            }
+        });
+        return registration;
+    }
+
+    private synchronized SelectorThread thread() throws IOException {
+        int i = (next.getAndIncrement() & Integer.MAX_VALUE) % threads.length;
+        if (threads[i] == null) {
+            threads[i] = new SelectorThread("Docker attach multiplexer " + i + " for " + name);
+            threads[i].start();
+        }
+        return threads[i];
+    }
+
+    public interface Handler {
+
+        /**
+         * Consume data from <code>buffer</code>, without blocking. Bytes left are delivered again after
+         * {@link Registration#resume()}.
+         */
+        void onData(ByteBuffer buffer) throws IOException;
+
+        /**
+         * Connection is closed, either on end of stream (<code>cause</code> is null) or on failure.
+         */
+        void onClosed(IOException cause);
+    }
+
+    /**
+     * An attach connection served by a selector thread. All state is only accessed by this thread.
+     */
+    public static class Registration {
+
+        private final SelectorThread thread;
+
+        private final SocketChannel channel;
+
+        private final ByteBuffer buffer;
+
+        private final Handler handler;
+
+        private SelectionKey key;
+
+        private volatile boolean paused;
+
+        private final AtomicBoolean resumeRequested = new AtomicBoolean();
+
+        private boolean eof, closed;
+
+        Registration(SelectorThread thread, SocketChannel channel, ByteBuffer buffer, Handler handler) {
+            this.thread = thread;
+            this.channel = channel;
+            this.buffer = buffer;
+            this.handler = handler;
+        }
+
+        public SocketChannel getChannel() {
+            return channel;
+        }
+
+        private void register() {
+            try {
+                key = channel.register(thread.selector, SelectionKey.OP_READ, this);
+                deliver();
+            } catch (IOException e) {
+                close(e);
+            }
+        }
+
+        private void read() {
+            try {
+                if (channel.read(buffer) < 0) {
+                    eof = true;
+                }
+                deliver();
+            } catch (IOException e) {
+                close(e);
+            }
+        }
+
+        private void deliver() throws IOException {
+            buffer.flip();
+            if (buffer.hasRemaining()) {
+                try {
+                    handler.onData(buffer);
+                } catch (RuntimeException e) {
+                    // don't let a broken handler leave connection registered, and its owner waiting forever
+                    throw new IOException("Attach handler failed", e);
+                }
+            }
+            boolean leftover = buffer.hasRemaining();
+            buffer.compact();
+
+            if (leftover) {
+                paused = true;
+                key.interestOps(0);
+            } else if (eof) {
+                close(null);
+            }
+        }
+
+        /**
+         * Resume reading after handler has been paused for lack of room. Always checked on selector thread, as
+         * handler may be about to pause when room is made.
+         */
+        public void resume() {
+            if (!resumeRequested.compareAndSet(false, true)) return;
+            thread.submit(new Runnable() {
+                @Override
+                public void run() {
+                    resumeRequested.set(false);
+                    if (closed || !paused) return;
+                    paused = false;
+                    try {
+                        key.interestOps(SelectionKey.OP_READ);
+                        deliver();
+                    } catch (IOException e) {
+                        close(e);
+                    }
+                }
+            });
+        }
+
+        public void close() {
+            thread.submit(new Runnable() {
+                @Override
+                public void run() {
+                    close(null);
+                }
+            });
+        }
+
+        private void close(IOException cause) {
+            if (closed) return;
+            closed = true;
+            try {
+                channel.close();
+            } catch (IOException e) {
+                LOGGER.log(Level.FINE, "Failed to close attach connection", e);
+            }
+            handler.onClosed(cause);
+        }
+    }
+
+    private static class SelectorThread extends Thread {
+
+        private final Selector selector;
+
+        private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<Runnable>();
+
+        SelectorThread(String name) throws IOException {
+            super(name);
+            setDaemon(true);
+            selector = Selector.open();
+        }
+
+        void submit(Runnable task) {
+            tasks.add(task);
+            selector.wakeup();
+        }
+
+        @Override
+        public void run() {
+            while (true) {
+                try {
+                    selector.select();
+
+                    Runnable task;
+                    while ((task = tasks.poll()) != null) {
+                        task.run();
+                    }
+
+                    Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                    while (keys.hasNext()) {
+                        SelectionKey key = keys.next();
+                        keys.remove();
+                        if (key.isValid() && key.isReadable()) {
+                            ((Registration) key.attachment()).read();
+                        }
+                    }
+                } catch (Throwable t) {
+                    // keep serving other connections
+                    LOGGER.log(Level.WARNING, "Unexpected failure in " + getName(), t);
+                }
+            }
+        }
+    }
+
+    private static final Logger LOGGER = Logger.getLogger(AttachMultiplexer.class.getName());
+}
@@ -0,0 +1,187 @@
+/*
+ * The MIT License
+ *
+ *  Copyright (c) 2015, CloudBees, Inc.
+ *
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  of this software and associated documentation files (the "Software"), to deal
+ *  in the Software without restriction, including without limitation the rights
+ *  to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  copies of the Software, and to permit persons to whom the Software is
+ *  furnished to do so, subject to the following conditions:
+ *
+ *  The above copyright notice and this permission notice shall be included in
+ *  all copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ *  THE SOFTWARE.
+ *
+ */
+
+package com.cloudbees.jenkins.plugins.dockerslaves;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+
+/**
+ * Bounded buffer between an {@link AttachMultiplexer} handler, which writes to it on selector thread without ever
+ * blocking, and a reader. Handler only writes up to {@link #free()} bytes, and leaves the rest in its buffer: the
+ * {@link AttachMultiplexer.Registration} is then paused, and resumed as soon as reader consumes some data.
+ */
+public class AttachPipe extends InputStream {
+
+    private final byte[] buffer;
+
+    private int head, size;
+
+    private boolean closed;
+
+    private IOException failure;
+
+    private volatile AttachMultiplexer.Registration registration;
+
+    private volatile boolean closeRequested;
+
+    /**
+     * Writer side, only used by handler after {@link #free()} has been checked.
+     */
+    final OutputStream sink = new OutputStream() {
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[] { (byte) b }, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            offer(b, off, len);
+        }
+    };
+
+    public AttachPipe(int capacity) {
+        this.buffer = new byte[capacity];
+    }
+
+    public void setRegistration(AttachMultiplexer.Registration registration) {
+        this.registration = registration;
+        if (closeRequested) {
+            registration.close();
+        } else {
+            // handler may already have been paused before registration was known
+            registration.resume();
+        }
+    }
+
+    synchronized int free() {
+        return buffer.length - size;
+    }
+
+    private synchronized void offer(byte[] b, int off, int len) {
+        while (len > 0) {
+            int tail = (head + size) % buffer.length;
+            int contiguous = size == buffer.length ? 0 : (tail >= head ? buffer.length - tail : head - tail);
+            int n = Math.min(len, contiguous);
+            if (n <= 0) throw new IllegalStateException("pipe overflow");
+            System.arraycopy(b, off, buffer, tail, n);
+            size += n;
+            off += n;
+            len -= n;
+        }
+        notifyAll();
+    }
+
+    synchronized void close(IOException cause) {
+        closed = true;
+        failure = cause;
+        notifyAll();
+    }
+
+    /**
+     * @return <code>true</code> if a {@link #poll(byte[])} would return data or end of stream.
+     */
+    synchronized boolean isReady() {
+        return size > 0 || closed;
+    }
+
+    /**
+     * Non-blocking read.
+     *
+     * @return bytes read, 0 if none is available yet, -1 on end of stream.
+     */
+    int poll(byte[] b) throws IOException {
+        int n;
+        synchronized (this) {
+            if (size == 0) {
+                if (!closed) return 0;
+                if (failure != null) throw failure;
+                return -1;
+            }
+            n = take(b, 0, b.length);
+        }
+        resume();
+        return n;
+    }
+
+    @Override
+    public int read() throws IOException {
+        byte[] b = new byte[1];
+        return read(b, 0, 1) < 0 ? -1 : b[0] & 0xFF;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0) return 0;
+        int n;
+        synchronized (this) {
+            while (size == 0 && !closed) {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    throw (InterruptedIOException) new InterruptedIOException().initCause(e);
+                }
+            }
+            if (size == 0) {
+                if (failure != null) throw failure;
+                return -1;
+            }
+            n = take(b, off, len);
+        }
+        resume();
+        return n;
+    }
+
+    private int take(byte[] b, int off, int len) {
+        int n = Math.min(len, Math.min(size, buffer.length - head));
+        System.arraycopy(buffer, head, b, off, n);
+        head = (head + n) % buffer.length;
+        size -= n;
+        return n;
+    }
+
+    private void resume() {
+        final AttachMultiplexer.Registration r = registration;
+        if (r != null) {
+            r.resume();
+        }
+    }
+
+    @Override
+    public synchronized int available() throws IOException {
+        return size;
+    }
+
+    @Override
+    public void close() throws IOException {
+        closeRequested = true;
+        final AttachMultiplexer.Registration r = registration;
+        if (r != null) {
+            r.close();
+        }
+    }
+}
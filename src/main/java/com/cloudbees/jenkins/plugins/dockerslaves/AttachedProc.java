@@ -0,0 +1,221 @@
+/*
+ * The MIT License
+ *
+ *  Copyright (c) 2015, CloudBees, Inc.
+ *
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  of this software and associated documentation files (the "Software"), to deal
+ *  in the Software without restriction, including without limitation the rights
+ *  to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  copies of the Software, and to permit persons to whom the Software is
+ *  furnished to do so, subject to the following conditions:
+ *
+ *  The above copyright notice and this permission notice shall be included in
+ *  all copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ *  THE SOFTWARE.
+ *
+ */
+
+package com.cloudbees.jenkins.plugins.dockerslaves;
+
+import hudson.Proc;
+import hudson.model.Computer;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * {@link Proc} for a container started through {@link DockerRemoteAPI}. Container output is read from the attach
+ * connection by the endpoint {@link AttachMultiplexer} into a bounded {@link AttachPipe}, so there's no
+ * <code>docker</code> CLI process. Pipe is then drained to the build log by a pooled task, only scheduled while
+ * there's output to write, so neither a slow build log stalls the selector thread, nor is a thread dedicated to
+ * each build step.
+ * <p>
+ * When no output stream is set, container stdout and stderr are both available from {@link #getStdout()}.
+ */
+public class AttachedProc extends Proc {
+
+    private static final int BUFFER_SIZE = 16 * 1024;
+
+    private final DockerRemoteAPI api;
+
+    private final String containerId;
+
+    private final AttachPipe pipe = new AttachPipe(BUFFER_SIZE);
+
+    private final AttachMultiplexer.Registration registration;
+
+    private final CountDownLatch closed = new CountDownLatch(1);
+
+    private final AtomicBoolean pumping = new AtomicBoolean();
+
+    private final boolean redirected;
+
+    private volatile IOException failure;
+
+    public AttachedProc(DockerRemoteAPI api, String containerId, OutputStream stdout, OutputStream stderr) throws IOException {
+        this.api = api;
+        this.containerId = containerId;
+        this.redirected = stdout != null;
+        final DockerRemoteAPI.HijackedConnection connection = api.attach(containerId, false);
+        try {
+            api.start(containerId);
+        } catch (IOException e) {
+            connection.getChannel().close();
+            throw e;
+        }
+
+        final AttachMultiplexer.Handler handler;
+        if (stdout == null) {
+            // output is read by caller: demultiplex into pipe, as it can't be larger than raw stream
+            final MultiplexedStreamDecoder decoder = new MultiplexedStreamDecoder(pipe.sink, pipe.sink);
+            handler = new AttachMultiplexer.Handler() {
+                @Override
+                public void onData(ByteBuffer buffer) throws IOException {
+                    ByteBuffer slice = slice(buffer);
+                    decoder.decode(slice);
+                    buffer.position(slice.position());
+                }
+
+                @Override
+                public void onClosed(IOException cause) {
+                    pipe.close(cause);
+                    done(cause);
+                }
+            };
+        } else {
+            // raw stream is buffered in pipe, then demultiplexed to output streams off selector thread
+            final MultiplexedStreamDecoder decoder = new MultiplexedStreamDecoder(stdout, stderr != null ? stderr : stdout);
+            final Runnable pump = new Runnable() {
+                @Override
+                public void run() {
+                    pump(decoder);
+                }
+            };
+            handler = new AttachMultiplexer.Handler() {
+                @Override
+                public void onData(ByteBuffer buffer) throws IOException {
+                    ByteBuffer slice = slice(buffer);
+                    pipe.sink.write(slice.array(), slice.arrayOffset() + slice.position(), slice.remaining());
+                    buffer.position(slice.limit());
+                    schedule(pump);
+                }
+
+                @Override
+                public void onClosed(IOException cause) {
+                    pipe.close(cause);
+                    schedule(pump);
+                }
+            };
+        }
+        this.registration = AttachMultiplexer.get(api).register(connection, BUFFER_SIZE, handler);
+        pipe.setRegistration(registration);
+    }
+
+    /**
+     * @return view of <code>buffer</code> no larger than free room in pipe. Caller has to copy its position back to
+     * <code>buffer</code> once consumed.
+     */
+    private ByteBuffer slice(ByteBuffer buffer) {
+        final ByteBuffer slice = buffer.duplicate();
+        slice.limit(slice.position() + Math.min(pipe.free(), slice.remaining()));
+        return slice;
+    }
+
+    private void schedule(Runnable pump) {
+        if (pumping.compareAndSet(false, true)) {
+            Computer.threadPoolForRemoting.submit(pump);
+        }
+    }
+
+    private void pump(MultiplexedStreamDecoder decoder) {
+        final byte[] chunk = new byte[BUFFER_SIZE];
+        try {
+            while (true) {
+                int n = pipe.poll(chunk);
+                if (n < 0) {
+                    decoder.flush();
+                    done(null);
+                    return;
+                }
+                if (n == 0) {
+                    pumping.set(false);
+                    // handler may have written meanwhile, but failed to schedule as we were still pumping
+                    if (!pipe.isReady() || !pumping.compareAndSet(false, true)) return;
+                    continue;
+                }
+                decoder.decode(ByteBuffer.wrap(chunk, 0, n));
+            }
+        } catch (IOException e) {
+            abort(e);
+        } catch (RuntimeException e) {
+            abort(new IOException("Failed to write container output", e));
+        }
+    }
+
+    private void abort(IOException cause) {
+        // registration may not be known yet if pump runs before constructor completes
+        try {
+            pipe.close();
+        } catch (IOException e) {
+            cause.addSuppressed(e);
+        }
+        done(cause);
+    }
+
+    private void done(IOException cause) {
+        if (closed.getCount() == 0) return;
+        failure = cause;
+        closed.countDown();
+    }
+
+    @Override
+    public boolean isAlive() throws IOException, InterruptedException {
+        return closed.getCount() > 0;
+    }
+
+    @Override
+    public void kill() throws IOException, InterruptedException {
+        registration.close();
+        closed.await();
+    }
+
+    @Override
+    public int join() throws IOException, InterruptedException {
+        closed.await();
+        if (failure != null) {
+            throw failure;
+        }
+        return api.waitFor(containerId);
+    }
+
+    /**
+     * @return container output, or <code>null</code> if it is written to the output stream passed to constructor,
+     * as for any {@link Proc} with redirected stdout.
+     */
+    @Override
+    public InputStream getStdout() {
+        return redirected ? null : pipe;
+    }
+
+    @Override
+    public InputStream getStderr() {
+        return null;
+    }
+
+    @Override
+    public OutputStream getStdin() {
+        return null;
+    }
+}
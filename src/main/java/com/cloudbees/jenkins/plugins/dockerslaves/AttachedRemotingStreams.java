@@ -0,0 +1,149 @@
+/*
+ * The MIT License
+ *
+ *  Copyright (c) 2015, CloudBees, Inc.
+ *
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  of this software and associated documentation files (the "Software"), to deal
+ *  in the Software without restriction, including without limitation the rights
+ *  to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  copies of the Software, and to permit persons to whom the Software is
+ *  furnished to do so, subject to the following conditions:
+ *
+ *  The above copyright notice and this permission notice shall be included in
+ *  all copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ *  THE SOFTWARE.
+ *
+ */
+
+package com.cloudbees.jenkins.plugins.dockerslaves;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+
+/**
+ * Remoting channel streams carried over a hijacked attach connection to the remoting container, as a replacement for
+ * a <code>docker start -ia</code> process and its stream copier threads.
+ * <p>
+ * Container stdout is demultiplexed on {@link AttachMultiplexer} thread into a bounded buffer, read by the remoting
+ * channel. When buffer is full, reading the connection is paused until remoting catches up. Stderr goes to the
+ * slave log. Channel writes are done by remoting writer thread straight to the socket.
+ */
+public class AttachedRemotingStreams implements AttachMultiplexer.Handler {
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final DockerRemoteAPI.HijackedConnection connection;
+
+    private final AttachPipe in = new AttachPipe(BUFFER_SIZE);
+
+    private final ChannelOutputStream out;
+
+    private final MultiplexedStreamDecoder decoder;
+
+    private AttachMultiplexer.Registration registration;
+
+    public AttachedRemotingStreams(DockerRemoteAPI.HijackedConnection connection, OutputStream stderr) {
+        this.connection = connection;
+        this.out = new ChannelOutputStream(connection.getChannel());
+        this.decoder = new MultiplexedStreamDecoder(in.sink, stderr);
+    }
+
+    public void register(AttachMultiplexer multiplexer) throws IOException {
+        registration = multiplexer.register(connection, BUFFER_SIZE, this);
+        in.setRegistration(registration);
+    }
+
+    public InputStream getInputStream() {
+        return in;
+    }
+
+    public OutputStream getOutputStream() {
+        return out;
+    }
+
+    public void close() {
+        if (registration != null) {
+            registration.close();
+        }
+    }
+
+    @Override
+    public void onData(ByteBuffer buffer) throws IOException {
+        // frame payload is never larger than the frame, so decoding up to free space never overflows the pipe
+        int free = in.free();
+        if (free == 0) return;
+        ByteBuffer slice = buffer.duplicate();
+        slice.limit(slice.position() + Math.min(free, slice.remaining()));
+        decoder.decode(slice);
+        buffer.position(slice.position());
+    }
+
+    @Override
+    public void onClosed(IOException cause) {
+        in.close(cause);
+    }
+
+    /**
+     * Write to a non-blocking channel, waiting for it to be writable with a dedicated selector when socket buffer
+     * is full. Only used by remoting writer thread.
+     */
+    private static class ChannelOutputStream extends OutputStream {
+
+        private final SocketChannel channel;
+
+        private Selector writable;
+
+        ChannelOutputStream(SocketChannel channel) {
+            this.channel = channel;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[] { (byte) b }, 0, 1);
+        }
+
+        @Override
+        public synchronized void write(byte[] b, int off, int len) throws IOException {
+            ByteBuffer buffer = ByteBuffer.wrap(b, off, len);
+            while (buffer.hasRemaining()) {
+                if (channel.write(buffer) == 0) {
+                    awaitWritable();
+                }
+            }
+        }
+
+        private void awaitWritable() throws IOException {
+            if (writable == null) {
+                writable = Selector.open();
+                channel.register(writable, SelectionKey.OP_WRITE);
+            }
+            writable.select(1000);
+            writable.selectedKeys().clear();
+        }
+
+        @Override
+        public synchronized void close() throws IOException {
+            try {
+                if (channel.isOpen()) {
+                    // send EOF to container stdin, so remoting agent terminates
+                    channel.socket().shutdownOutput();
+                }
+            } finally {
+                if (writable != null) writable.close();
+            }
+        }
+    }
+}
@@ -0,0 +1,90 @@
+/*
+ * The MIT License
+ *
+ *  Copyright (c) 2015, CloudBees, Inc.
+ *
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  of this software and associated documentation files (the "Software"), to deal
+ *  in the Software without restriction, including without limitation the rights
+ *  to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  copies of the Software, and to permit persons to whom the Software is
+ *  furnished to do so, subject to the following conditions:
+ *
+ *  The above copyright notice and this permission notice shall be included in
+ *  all copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ *  THE SOFTWARE.
+ *
+ */
+
+package com.cloudbees.jenkins.plugins.dockerslaves;
+
+import hudson.Extension;
+import hudson.Util;
+import hudson.model.AbstractDescribableImpl;
+import hudson.model.Descriptor;
+import hudson.model.Job;
+import org.kohsuke.stapler.DataBoundConstructor;
+
+/**
+ * A named docker volume used to cache build dependencies (maven repository, npm cache, ...) across builds.
+ * Volume is mounted into the remoting container so it's visible to all containers in the pod.
+ */
+public class CacheVolumeDefinition extends AbstractDescribableImpl<CacheVolumeDefinition> {
+
+    static final String VOLUME_PREFIX = "jenkins-cache-";
+
+    private final String name;
+
+    private final String mountPath;
+
+    /**
+     * Shared caches are used by all jobs using the same cache name, otherwise cache is private to the job.
+     */
+    private final boolean shared;
+
+    @DataBoundConstructor
+    public CacheVolumeDefinition(String name, String mountPath, boolean shared) {
+        this.name = name;
+        this.mountPath = mountPath;
+        this.shared = shared;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public String getMountPath() {
+        return mountPath;
+    }
+
+    public boolean isShared() {
+        return shared;
+    }
+
+    /**
+     * Docker volume name for this cache, as used by <code>job</code>.
+     */
+    public String getVolumeName(Job job) {
+        String volume = VOLUME_PREFIX + name.replaceAll("[^a-zA-Z0-9_.-]", "_");
+        if (!shared) {
+            volume += "-" + Util.getDigestOf(job.getFullName()).substring(0, 12);
+        }
+        return volume;
+    }
+
+    @Extension
+    public static class DescriptorImpl extends Descriptor<CacheVolumeDefinition> {
+
+        @Override
+        public String getDisplayName() {
+            return "Cache Volume";
+        }
+    }
+}
@@ -0,0 +1,193 @@
+/*
+ * The MIT License
+ *
+ *  Copyright (c) 2015, CloudBees, Inc.
+ *
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  of this software and associated documentation files (the "Software"), to deal
+ *  in the Software without restriction, including without limitation the rights
+ *  to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  copies of the Software, and to permit persons to whom the Software is
+ *  furnished to do so, subject to the following conditions:
+ *
+ *  The above copyright notice and this permission notice shall be included in
+ *  all copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ *  THE SOFTWARE.
+ *
+ */
+
+package com.cloudbees.jenkins.plugins.dockerslaves;
+
+import hudson.Extension;
+import hudson.Launcher;
+import hudson.model.AsyncPeriodicWork;
+import hudson.model.PeriodicWork;
+import hudson.model.TaskListener;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Enforce {@link DockerSlaves#getCacheVolumesQuota()} on cache volumes, evicting least recently used ones first.
+ * Last use is tracked in memory, so volumes discovered after a restart are considered as just used.
+ * <p>
+ * Volumes are marked in use by provisioners from the time they are touched until the remoting container mounting them
+ * has been created, and are never evicted meanwhile: docker only refuses to remove a volume once a container uses it.
+ * Volumes still mounted by a container, including stopped remoting containers kept for workspace reuse, can't be
+ * evicted either, so {@link RemotingContainerCollector} runs this janitor again once it has removed some.
+ */
+@Extension
+public class CacheVolumeJanitor extends AsyncPeriodicWork {
+
+    private final ConcurrentMap<String, Long> lastUse = new ConcurrentHashMap<String, Long>();
+
+    /**
+     * Volumes about to be mounted, as volume -&gt; number of provisioners. Guarded by this instance.
+     */
+    private final Map<String, Integer> inUse = new HashMap<String, Integer>();
+
+    public CacheVolumeJanitor() {
+        super("Docker cache volumes janitor");
+    }
+
+    @Override
+    public long getRecurrencePeriod() {
+        return TimeUnit.MINUTES.toMillis(15);
+    }
+
+    /**
+     * Record cache volumes are used by a build, and protect them from eviction until {@link #release(Collection)}.
+     * @return volumes which weren't known yet
+     */
+    public synchronized Set<String> acquire(Collection<String> volumes) {
+        final Set<String> unknown = new HashSet<String>();
+        final long now = System.currentTimeMillis();
+        for (String volume : volumes) {
+            if (lastUse.put(volume, now) == null) {
+                unknown.add(volume);
+            }
+            final Integer count = inUse.get(volume);
+            inUse.put(volume, count != null ? count + 1 : 1);
+        }
+        return unknown;
+    }
+
+    /**
+     * Cache volumes acquired by a build are now mounted, or won't be.
+     */
+    public synchronized void release(Collection<String> volumes) {
+        for (String volume : volumes) {
+            final Integer count = inUse.get(volume);
+            if (count == null || count <= 1) {
+                inUse.remove(volume);
+            } else {
+                inUse.put(volume, count - 1);
+            }
+        }
+    }
+
+    /**
+     * Remove <code>volume</code> unless a build is about to mount it.
+     * @return <code>true</code> if volume has been removed
+     */
+    private synchronized boolean evict(DockerDriver driver, Launcher launcher, String volume) throws IOException, InterruptedException {
+        if (inUse.containsKey(volume)) {
+            return false;
+        }
+        // removal fails if volume is currently in use by a container
+        if (driver.removeVolume(launcher, volume) != 0) {
+            return false;
+        }
+        lastUse.remove(volume);
+        return true;
+    }
+
+    @Override
+    protected void execute(TaskListener listener) throws IOException, InterruptedException {
+        final DockerSlaves plugin = DockerSlaves.get();
+        final long quota = plugin.getCacheVolumesQuota() * 1024L;
+        if (quota <= 0) {
+            return;
+        }
+
+        final Launcher launcher = new Launcher.LocalLauncher(listener);
+        final DockerDriver driver = new DockerDriver(plugin.getDockerHost());
+        try {
+            final long now = System.currentTimeMillis();
+            List<CacheVolume> volumes = new ArrayList<CacheVolume>();
+            long total = 0;
+            for (String volume : driver.listVolumes(launcher)) {
+                if (!volume.startsWith(CacheVolumeDefinition.VOLUME_PREFIX)) continue;
+                lastUse.putIfAbsent(volume, now);
+                long size = driver.getVolumeSize(launcher, volume, plugin.getRemotingContainerImageName());
+                volumes.add(new CacheVolume(volume, size, lastUse.get(volume)));
+                total += size;
+            }
+
+            Collections.sort(volumes, new Comparator<CacheVolume>() {
+                @Override
+                public int compare(CacheVolume o1, CacheVolume o2) {
+                    return Long.compare(o1.lastUse, o2.lastUse);
+                }
+            });
+
+            int referenced = 0;
+            for (CacheVolume volume : volumes) {
+                if (total <= quota) break;
+                if (driver.isVolumeReferenced(launcher, volume.name)) {
+                    referenced++;
+                    continue;
+                }
+                if (evict(driver, launcher, volume.name)) {
+                    LOGGER.log(Level.INFO, "Evicted cache volume {0} ({1} KB)", new Object[] {volume.name, volume.size});
+                    total -= volume.size;
+                }
+            }
+
+            if (total > quota) {
+                LOGGER.log(Level.WARNING, "Cache volumes use {0} KB, over {1} KB quota, {2} volumes still used by containers",
+                        new Object[] {total, quota, referenced});
+            }
+        } finally {
+            driver.close();
+        }
+    }
+
+    public static CacheVolumeJanitor get() {
+        return PeriodicWork.all().get(CacheVolumeJanitor.class);
+    }
+
+    private static class CacheVolume {
+        final String name;
+        final long size;
+        final long lastUse;
+
+        CacheVolume(String name, long size, long lastUse) {
+            this.name = name;
+            this.size = size;
+            this.lastUse = lastUse;
+        }
+    }
+
+    private static final Logger LOGGER = Logger.getLogger(CacheVolumeJanitor.class.getName());
+}
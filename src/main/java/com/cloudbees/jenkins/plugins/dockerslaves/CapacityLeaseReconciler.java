@@ -0,0 +1,121 @@
+/*
+ * The MIT License
+ *
+ *  Copyright (c) 2015, CloudBees, Inc.
+ *
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  of this software and associated documentation files (the "Software"), to deal
+ *  in the Software without restriction, including without limitation the rights
+ *  to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  copies of the Software, and to permit persons to whom the Software is
+ *  furnished to do so, subject to the following conditions:
+ *
+ *  The above copyright notice and this permission notice shall be included in
+ *  all copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ *  THE SOFTWARE.
+ *
+ */
+
+package com.cloudbees.jenkins.plugins.dockerslaves;
+
+import hudson.Extension;
+import hudson.Launcher;
+import hudson.model.AsyncPeriodicWork;
+import hudson.model.Node;
+import hudson.model.TaskListener;
+import jenkins.model.Jenkins;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Reclaim containers cap slots which haven't been released by their owner, i.e. as slave launch or termination
+ * failed: a {@link ContainerCountLock.Lease} is stale once its {@link DockerSlave} is gone, or its remoting container
+ * isn't running anymore. Leases restored on startup have no slave, so only their container is checked. Leases
+ * younger than a grace period are ignored, as their remoting container may not have been started yet.
+ */
+@Extension
+public class CapacityLeaseReconciler extends AsyncPeriodicWork {
+
+    private static final long GRACE = Long.getLong(CapacityLeaseReconciler.class.getName() + ".grace", TimeUnit.MINUTES.toMillis(5));
+
+    public CapacityLeaseReconciler() {
+        super("Docker containers cap reconciler");
+    }
+
+    @Override
+    public long getRecurrencePeriod() {
+        return TimeUnit.MINUTES.toMillis(5);
+    }
+
+    @Override
+    protected void execute(TaskListener listener) throws IOException, InterruptedException {
+        final DockerSlaves plugin = DockerSlaves.get();
+        final ContainerCountLock containerCount = plugin.containerCount;
+
+        final List<ContainerCountLock.Lease> candidates = new ArrayList<ContainerCountLock.Lease>();
+        final long threshold = System.currentTimeMillis() - GRACE;
+        synchronized (containerCount) {
+            for (ContainerCountLock.Lease lease : containerCount.getLeases()) {
+                if (lease.getSince() < threshold) {
+                    candidates.add(lease);
+                }
+            }
+        }
+        if (candidates.isEmpty()) {
+            return;
+        }
+
+        // list containers after leases snapshot, so a lease released meanwhile is just a no-op to reclaim
+        final Set<String> running;
+        final Launcher launcher = new Launcher.LocalLauncher(listener);
+        final DockerDriver driver = new DockerDriver(plugin.getDockerHost());
+        try {
+            running = new HashSet<String>(driver.listContainers(launcher, DockerDriver.REMOTING_LABEL, "running"));
+        } finally {
+            driver.close();
+        }
+
+        int reclaimed = 0;
+        for (ContainerCountLock.Lease lease : candidates) {
+            final String reason;
+            if (!lease.isRestored() && !(getNode(lease.getOwner()) instanceof DockerSlave)) {
+                reason = "slave is gone";
+            } else if (lease.getContainerId() == null || !running.contains(lease.getContainerId())) {
+                reason = "remoting container isn't running";
+            } else {
+                continue;
+            }
+
+            boolean released;
+            synchronized (containerCount) {
+                released = containerCount.reclaim(lease);
+            }
+            if (released) {
+                reclaimed++;
+                listener.getLogger().println("Reclaimed containers cap slot leaked by " + lease + ": " + reason);
+                LOGGER.log(Level.WARNING, "Reclaimed containers cap slot leaked by {0}: {1}", new Object[] {lease, reason});
+            }
+        }
+        LOGGER.log(Level.FINE, "{0} stale containers cap slot(s) reclaimed", reclaimed);
+    }
+
+    private static Node getNode(String name) {
+        return name != null ? Jenkins.getInstance().getNode(name) : null;
+    }
+
+    private static final Logger LOGGER = Logger.getLogger(CapacityLeaseReconciler.class.getName());
+}
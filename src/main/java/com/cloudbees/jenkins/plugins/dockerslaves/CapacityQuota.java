@@ -0,0 +1,90 @@
+/*
+ * The MIT License
+ *
+ *  Copyright (c) 2015, CloudBees, Inc.
+ *
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  of this software and associated documentation files (the "Software"), to deal
+ *  in the Software without restriction, including without limitation the rights
+ *  to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  copies of the Software, and to permit persons to whom the Software is
+ *  furnished to do so, subject to the following conditions:
+ *
+ *  The above copyright notice and this permission notice shall be included in
+ *  all copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ *  THE SOFTWARE.
+ *
+ */
+
+package com.cloudbees.jenkins.plugins.dockerslaves;
+
+import hudson.Extension;
+import hudson.Util;
+import hudson.model.AbstractDescribableImpl;
+import hudson.model.Descriptor;
+import org.kohsuke.stapler.DataBoundConstructor;
+
+/**
+ * Share of containers cap for a folder or a job, enforced by {@link ContainerCountLock}. Quotas are hierarchical: a
+ * job is bound by the quotas of all its parent folders, and by its own.
+ */
+public class CapacityQuota extends AbstractDescribableImpl<CapacityQuota> {
+
+    /**
+     * Full name of the folder or job, i.e. <code>team-a</code> or <code>team-a/app</code>.
+     */
+    private final String path;
+
+    /**
+     * Slots guaranteed to jobs under {@link #path}: other jobs aren't admitted if that would leave less free slots
+     * than needed for waiting jobs under this quota to reach their minimum.
+     */
+    private final int min;
+
+    /**
+     * Maximum slots used by jobs under {@link #path}, <code>0</code> for no limit but the containers cap.
+     */
+    private final int burst;
+
+    @DataBoundConstructor
+    public CapacityQuota(String path, int min, int burst) {
+        this.path = Util.fixEmptyAndTrim(path) != null ? Util.fixEmptyAndTrim(path).replaceAll("^/+|/+$", "") : "";
+        this.min = Math.max(min, 0);
+        this.burst = Math.max(burst, 0);
+    }
+
+    public String getPath() {
+        return path;
+    }
+
+    public int getMin() {
+        return min;
+    }
+
+    public int getBurst() {
+        return burst;
+    }
+
+    /**
+     * Job with full name <code>job</code> is bound by this quota.
+     */
+    public boolean covers(String job) {
+        return job != null && path.length() > 0 && (job.equals(path) || job.startsWith(path + "/"));
+    }
+
+    @Extension
+    public static class DescriptorImpl extends Descriptor<CapacityQuota> {
+
+        @Override
+        public String getDisplayName() {
+            return "Capacity quota";
+        }
+    }
+}
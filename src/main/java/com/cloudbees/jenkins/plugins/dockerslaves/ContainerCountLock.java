@@ -1,9 +1,29 @@
 package com.cloudbees.jenkins.plugins.dockerslaves;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Hashtable;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 /**
+ * Containers cap accounting. Each slot in use is a {@link Lease}, so a slot which isn't released, i.e. as slave
+ * termination failed, can be identified and reclaimed by {@link CapacityLeaseReconciler}.
+ * <p>
+ * When cap is reached, slaves wait as a {@link Waiter}, and are signaled as slots are released. The
+ * {@link AdmissionPolicy} decides which one gets the slot, among the ones {@link CapacityQuota}s allow: waiters under
+ * a quota minimum go first, waiters over a quota burst are skipped. Only that waiter is signaled, so a release doesn't
+ * wake up every slave waiting for the cap. Usage and waiters per quota are counted as leases come and go, so picking
+ * the next waiter doesn't need to scan leases.
+ * <p>
+ * Callers synchronize on this instance, but {@link Waiter#await(long)} outside of it.
+ *
  * @author <a href="mailto:tugdual.saunier@blackfire.io">Tugdual Saunier</a>
  */
 public class ContainerCountLock {
@@ -13,6 +33,34 @@ public class ContainerCountLock {
 
     private String defaultConstraint;
 
+    /**
+     * Slots counted in {@link #containerCounts} but not yet used, by <code>owner|constraint</code>.
+     */
+    private final Map<String, Reservation> reservations = new HashMap<String, Reservation>();
+
+    /**
+     * Slots in use, counted in {@link #containerCounts}.
+     */
+    private final Set<Lease> leases = new LinkedHashSet<Lease>();
+
+    /**
+     * Leases reclaimed as stale since startup.
+     */
+    private int reclaimed;
+
+    private AdmissionPolicy admissionPolicy = new FifoAdmissionPolicy();
+
+    /**
+     * Slaves waiting for a slot, in arrival order.
+     */
+    private final List<Waiter> waiters = new ArrayList<Waiter>();
+
+    private List<CapacityQuota> quotas = Collections.emptyList();
+
+    /**
+     * Slots in use or reserved, and waiters, per quota in {@link #quotas}.
+     */
+    private final Map<CapacityQuota, QuotaCount> quotaCounts = new IdentityHashMap<CapacityQuota, QuotaCount>();
 
     public ContainerCountLock(int containerCap, String defaultConstraint) {
         containerCounts = new Hashtable<String, Integer>(2);
@@ -20,35 +68,542 @@ public class ContainerCountLock {
         setDefaultConstraint(defaultConstraint);
     }
 
-    public void setDefaultConstraint(String defaultConstraint) {
+    public synchronized void setDefaultConstraint(String defaultConstraint) {
         this.defaultConstraint = defaultConstraint;
     }
 
-    public void setContainerCap(int containerCap) {
+    public synchronized void setContainerCap(int containerCap) {
         this.containerCap = containerCap;
+        signalAll();
+    }
+
+    public synchronized void setQuotas(List<CapacityQuota> quotas) {
+        this.quotas = quotas != null ? new ArrayList<CapacityQuota>(quotas) : Collections.<CapacityQuota>emptyList();
+        quotaCounts.clear();
+        for (CapacityQuota quota : this.quotas) {
+            final QuotaCount count = new QuotaCount();
+            for (Lease lease : leases) {
+                if (quota.covers(lease.getJob())) count.usage++;
+            }
+            for (Reservation reservation : reservations.values()) {
+                if (quota.covers(reservation.job)) count.usage += reservation.count;
+            }
+            for (Waiter waiter : waiters) {
+                if (quota.covers(waiter.getJob())) count.waiting++;
+            }
+            quotaCounts.put(quota, count);
+        }
+        signalAll();
     }
 
-    public int getCount(JobBuildsContainersContext context) {
-        return containerCounts.getOrDefault(context.getConstraint(), 0);
+    public synchronized void setAdmissionPolicy(AdmissionPolicy admissionPolicy) {
+        this.admissionPolicy = admissionPolicy != null ? admissionPolicy : new FifoAdmissionPolicy();
+        signalAll();
     }
 
-    public int getLimit(JobBuildsContainersContext context) {
-        if (context.getConstraint() == defaultConstraint) {
+    public synchronized int getCount(JobBuildsContainersContext context) {
+        return getCount(context.getConstraint());
+    }
+
+    private int getCount(String constraint) {
+        return containerCounts.getOrDefault(constraint, 0);
+    }
+
+    public synchronized int getLimit(JobBuildsContainersContext context) {
+        return getLimit(context.getConstraint());
+    }
+
+    private int getLimit(String constraint) {
+        if (constraint == defaultConstraint) {
             return containerCap;
         }
 
         return 3;
     }
 
-    public boolean isLimitReach(JobBuildsContainersContext context)  {
+    public synchronized boolean isLimitReach(JobBuildsContainersContext context)  {
         return getCount(context) >= getLimit(context);
     }
 
-    public void increaseCount(JobBuildsContainersContext context) {
-        containerCounts.put(context.getConstraint(), getCount(context)+1);
+    /**
+     * Take a slot for <code>context</code> remoting container, if limit isn't reached and no other slave is waiting
+     * for one.
+     * @param owner name of the {@link DockerSlave} the pod is provisioned for
+     * @return lease to {@link #release(Lease)}, or <code>null</code> if limit is reached
+     */
+    public synchronized Lease acquire(String owner, JobBuildsContainersContext context) {
+        final Waiter waiter = enqueue(owner, null, context, -1);
+        final Lease lease = acquire(waiter, context);
+        if (lease == null) {
+            cancel(waiter);
+        }
+        return lease;
+    }
+
+    /**
+     * Start waiting for a slot. Waiter has to {@link #acquire(Waiter, JobBuildsContainersContext)} a slot or
+     * {@link #cancel(Waiter)}.
+     * @param job full name of the job, for {@link CapacityQuota}s
+     * @param estimatedDuration estimated build duration in milliseconds, or <code>-1</code> if unknown
+     */
+    public synchronized Waiter enqueue(String owner, String job, JobBuildsContainersContext context, long estimatedDuration) {
+        final Waiter waiter = new Waiter(owner, job, context.getConstraint(), estimatedDuration, System.currentTimeMillis());
+        waiters.add(waiter);
+        for (CapacityQuota quota : quotas) {
+            if (quota.covers(job)) quotaCounts.get(quota).waiting++;
+        }
+        return waiter;
+    }
+
+    /**
+     * Take a slot for <code>waiter</code>, if limit isn't reached, quotas allow it and admission policy ranks it
+     * first among slaves waiting for the same constraint. Otherwise caller is expected to {@link Waiter#await(long)}
+     * to be signaled, out of this instance lock.
+     * @return lease to {@link #release(Lease)}, or <code>null</code>
+     */
+    public synchronized Lease acquire(Waiter waiter, JobBuildsContainersContext context) {
+        if (isLimitReach(context) || next(waiter.getConstraint(), System.currentTimeMillis()) != waiter) {
+            return null;
+        }
+        if (!isUnderMin(waiter.getJob())
+                && getLimit(context) - getCount(context) <= getGuaranteed(waiter.getJob())) {
+            // remaining slots are guaranteed to other waiting jobs
+            return null;
+        }
+        remove(waiter);
+        increaseCount(context.getConstraint());
+        final Lease lease = lease(waiter.getOwner(), waiter.getJob(), context);
+        // next waiter may be admitted as well
+        signal(waiter.getConstraint());
+        return lease;
+    }
+
+    /**
+     * Slots in use or reserved by jobs under <code>quota</code>.
+     */
+    public synchronized int getUsage(CapacityQuota quota) {
+        final QuotaCount count = quotaCounts.get(quota);
+        if (count != null) {
+            return count.usage;
+        }
+        // not one of the configured quotas
+        int usage = 0;
+        for (Lease lease : leases) {
+            if (quota.covers(lease.getJob())) usage++;
+        }
+        for (Reservation reservation : reservations.values()) {
+            if (quota.covers(reservation.job)) usage += reservation.count;
+        }
+        return usage;
+    }
+
+    private void addUsage(String job, int delta) {
+        for (CapacityQuota quota : quotas) {
+            if (quota.covers(job)) quotaCounts.get(quota).usage += delta;
+        }
+    }
+
+    /**
+     * Some quota <code>job</code> is bound by has reached its burst limit.
+     */
+    private boolean isBurstReached(String job) {
+        for (CapacityQuota quota : quotas) {
+            if (quota.getBurst() > 0 && quota.covers(job) && quotaCounts.get(quota).usage >= quota.getBurst()) return true;
+        }
+        return false;
+    }
+
+    /**
+     * Some quota <code>job</code> is bound by hasn't reached its guaranteed minimum.
+     */
+    private boolean isUnderMin(String job) {
+        for (CapacityQuota quota : quotas) {
+            if (quota.covers(job) && quotaCounts.get(quota).usage < quota.getMin()) return true;
+        }
+        return false;
+    }
+
+    /**
+     * Some quota <code>job</code> is bound by has a burst limit, so its usage may block waiters for any constraint.
+     */
+    private boolean isBurstBound(String job) {
+        for (CapacityQuota quota : quotas) {
+            if (quota.getBurst() > 0 && quota.covers(job)) return true;
+        }
+        return false;
+    }
+
+    /**
+     * Slots to keep free for other quotas to reach their minimum, as far as they have waiting jobs. Idle quotas don't
+     * hold slots, so capacity isn't wasted.
+     */
+    private int getGuaranteed(String job) {
+        int guaranteed = 0;
+        for (CapacityQuota quota : quotas) {
+            if (quota.covers(job)) continue;
+            final QuotaCount count = quotaCounts.get(quota);
+            final int missing = quota.getMin() - count.usage;
+            if (missing <= 0) continue;
+            guaranteed += Math.min(missing, count.waiting);
+        }
+        return guaranteed;
+    }
+
+    /**
+     * Stop waiting for a slot. No-op if waiter has been admitted.
+     */
+    public synchronized void cancel(Waiter waiter) {
+        if (remove(waiter)) {
+            // waiter may have been picked for a slot it won't use
+            signal(waiter.getConstraint());
+        }
+    }
+
+    private boolean remove(Waiter waiter) {
+        if (!waiters.remove(waiter)) {
+            return false;
+        }
+        for (CapacityQuota quota : quotas) {
+            if (quota.covers(waiter.getJob())) quotaCounts.get(quota).waiting--;
+        }
+        return true;
+    }
+
+    /**
+     * Signal the waiter admission policy picks for <code>constraint</code>.
+     */
+    private void signal(String constraint) {
+        final Waiter next = next(constraint, System.currentTimeMillis());
+        if (next != null) {
+            next.signal();
+        }
+    }
+
+    /**
+     * Signal the waiter admission policy picks for each constraint slaves are waiting for.
+     */
+    private void signalAll() {
+        final Set<String> constraints = new HashSet<String>();
+        for (Waiter waiter : waiters) {
+            if (constraints.add(waiter.getConstraint())) {
+                signal(waiter.getConstraint());
+            }
+        }
+    }
+
+    public synchronized List<Waiter> getWaiters() {
+        return new ArrayList<Waiter>(waiters);
+    }
+
+    private Waiter next(String constraint, long now) {
+        Waiter next = null;
+        boolean nextUnderMin = false;
+        double best = 0;
+        for (Waiter waiter : waiters) {
+            if (constraint == null ? waiter.getConstraint() != null : !constraint.equals(waiter.getConstraint())) {
+                continue;
+            }
+            if (isBurstReached(waiter.getJob())) {
+                continue;
+            }
+            final boolean underMin = isUnderMin(waiter.getJob());
+            final double rank = admissionPolicy.rank(waiter, now);
+            if (next == null || (underMin && !nextUnderMin) || (underMin == nextUnderMin && rank < best)) {
+                next = waiter;
+                nextUnderMin = underMin;
+                best = rank;
+            }
+        }
+        return next;
+    }
+
+    /**
+     * Release a slot. Releasing a lease twice, or once it has been reclaimed, is a no-op.
+     * @return <code>true</code> if slot was released by this call
+     */
+    public synchronized boolean release(Lease lease) {
+        if (!leases.remove(lease)) {
+            return false;
+        }
+        decreaseCount(lease.getConstraint());
+        addUsage(lease.getJob(), -1);
+        if (isBurstBound(lease.getJob())) {
+            signalAll();
+        } else {
+            signal(lease.getConstraint());
+        }
+        return true;
+    }
+
+    /**
+     * Release a stale lease, which owner didn't.
+     */
+    public synchronized boolean reclaim(Lease lease) {
+        if (!release(lease)) {
+            return false;
+        }
+        reclaimed++;
+        return true;
+    }
+
+    public synchronized List<Lease> getLeases() {
+        return new ArrayList<Lease>(leases);
+    }
+
+    public synchronized int getReclaimed() {
+        return reclaimed;
+    }
+
+    private void increaseCount(String constraint) {
+        containerCounts.put(constraint, getCount(constraint) + 1);
+    }
+
+    private void decreaseCount(String constraint) {
+        containerCounts.put(constraint, Math.max(getCount(constraint) - 1, 0));
+    }
+
+    private Lease lease(String owner, String job, JobBuildsContainersContext context) {
+        final ContainerInstance remoting = context.getRemotingContainer();
+        final Lease lease = new Lease(owner, job, context.getConstraint(), remoting != null ? remoting.getId() : null, System.currentTimeMillis(), false);
+        leases.add(lease);
+        addUsage(job, 1);
+        return lease;
+    }
+
+    /**
+     * Restore a slot for a container which survived a restart.
+     */
+    public synchronized Lease restore(String owner, String job, String constraint, String containerId) {
+        increaseCount(constraint);
+        final Lease lease = new Lease(owner, job, constraint, containerId, System.currentTimeMillis(), true);
+        leases.add(lease);
+        addUsage(job, 1);
+        return lease;
+    }
+
+    /**
+     * Reserve up to <code>count</code> slots for <code>owner</code> in one step, i.e. for all configurations of a
+     * matrix build. Reserved slots count against the quotas of <code>job</code>, so a reservation can't exceed a
+     * burst limit, nor take slots guaranteed to other quotas.
+     * @param job full name of the job slots are reserved for, for {@link CapacityQuota}s
+     * @return number of slots actually reserved, as available under the limit and quotas
+     */
+    public synchronized int reserve(String owner, String job, String constraint, int count) {
+        if (constraint == null) return 0;
+        int available = getLimit(constraint) - getCount(constraint);
+        if (!isUnderMin(job)) {
+            available -= getGuaranteed(job);
+        }
+        for (CapacityQuota quota : quotas) {
+            if (quota.getBurst() > 0 && quota.covers(job)) {
+                available = Math.min(available, quota.getBurst() - getUsage(quota));
+            }
+        }
+        int reserved = Math.min(count, Math.max(available, 0));
+        if (reserved > 0) {
+            containerCounts.put(constraint, getCount(constraint) + reserved);
+            String key = owner + '|' + constraint;
+            Reservation reservation = reservations.get(key);
+            if (reservation == null) {
+                reservation = new Reservation(job, constraint);
+                reservations.put(key, reservation);
+            }
+            reservation.count += reserved;
+            addUsage(job, reserved);
+        }
+        return reserved;
+    }
+
+    /**
+     * Use a slot reserved by <code>owner</code>. Slot is already counted, so it's just turned into a lease.
+     * @param slave name of the {@link DockerSlave} the pod is provisioned for
+     * @param job full name of the job, for {@link CapacityQuota}s
+     * @return lease to {@link #release(Lease)}, or <code>null</code> if no slot is reserved
+     */
+    public synchronized Lease claimReservation(String owner, String slave, String job, JobBuildsContainersContext context) {
+        String key = owner + '|' + context.getConstraint();
+        Reservation reservation = reservations.get(key);
+        if (reservation == null) return null;
+        if (--reservation.count == 0) {
+            reservations.remove(key);
+        }
+        addUsage(reservation.job, -1);
+        return lease(slave, job, context);
+    }
+
+    /**
+     * Release slots reserved by <code>owner</code> which haven't been used.
+     * @return number of released slots
+     */
+    public synchronized int releaseReservations(String owner) {
+        int released = 0;
+        Iterator<Map.Entry<String, Reservation>> it = reservations.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<String, Reservation> entry = it.next();
+            if (entry.getKey().startsWith(owner + '|')) {
+                Reservation reservation = entry.getValue();
+                containerCounts.put(reservation.constraint, Math.max(getCount(reservation.constraint) - reservation.count, 0));
+                addUsage(reservation.job, -reservation.count);
+                released += reservation.count;
+                it.remove();
+            }
+        }
+        if (released > 0) {
+            signalAll();
+        }
+        return released;
+    }
+
+    /**
+     * Slots in use or reserved, and slaves waiting, for a quota.
+     */
+    private static final class QuotaCount {
+        private int usage;
+        private int waiting;
+    }
+
+    /**
+     * Slots reserved by an owner for a constraint.
+     */
+    private static final class Reservation {
+        private final String job;
+        private final String constraint;
+        private int count;
+
+        Reservation(String job, String constraint) {
+            this.job = job;
+            this.constraint = constraint;
+        }
+    }
+
+    /**
+     * A slave waiting for a containers cap slot. Waiters are compared by identity.
+     */
+    public static final class Waiter {
+        private final String owner;
+        private final String job;
+        private final String constraint;
+        private final long estimatedDuration;
+        private final long arrival;
+        private boolean signaled;
+
+        Waiter(String owner, String job, String constraint, long estimatedDuration, long arrival) {
+            this.owner = owner;
+            this.job = job;
+            this.constraint = constraint;
+            this.estimatedDuration = estimatedDuration;
+            this.arrival = arrival;
+        }
+
+        public String getOwner() {
+            return owner;
+        }
+
+        /**
+         * Full name of the job, or <code>null</code> if not bound by {@link CapacityQuota}s.
+         */
+        public String getJob() {
+            return job;
+        }
+
+        public String getConstraint() {
+            return constraint;
+        }
+
+        /**
+         * Estimated build duration in milliseconds, or <code>-1</code> if unknown.
+         */
+        public long getEstimatedDuration() {
+            return estimatedDuration;
+        }
+
+        /**
+         * Epoch time in milliseconds slave started waiting.
+         */
+        public long getArrival() {
+            return arrival;
+        }
+
+        /**
+         * Wait until this waiter is signaled a slot may be available, or <code>timeout</code> milliseconds. Caller
+         * must not hold the {@link ContainerCountLock} monitor, so slots can be released meanwhile.
+         */
+        public synchronized void await(long timeout) throws InterruptedException {
+            if (!signaled) {
+                wait(timeout);
+            }
+            signaled = false;
+        }
+
+        synchronized void signal() {
+            signaled = true;
+            notify();
+        }
     }
 
-    public void decreaseCount(JobBuildsContainersContext context) {
-        containerCounts.put(context.getConstraint(), Math.max(getCount(context) - 1, 0));
+    /**
+     * A containers cap slot in use. Leases are compared by identity.
+     */
+    public static final class Lease {
+        private final String owner;
+        private final String job;
+        private final String constraint;
+        private final String containerId;
+        private final long since;
+        private final boolean restored;
+
+        Lease(String owner, String job, String constraint, String containerId, long since, boolean restored) {
+            this.owner = owner;
+            this.job = job;
+            this.constraint = constraint;
+            this.containerId = containerId;
+            this.since = since;
+            this.restored = restored;
+        }
+
+        /**
+         * Name of the {@link DockerSlave} holding the slot, or build ID for slots restored on startup.
+         */
+        public String getOwner() {
+            return owner;
+        }
+
+        /**
+         * Full name of the job the slot is used for.
+         */
+        public String getJob() {
+            return job;
+        }
+
+        public String getConstraint() {
+            return constraint;
+        }
+
+        /**
+         * Remoting container the slot is used by.
+         */
+        public String getContainerId() {
+            return containerId;
+        }
+
+        /**
+         * Epoch time in milliseconds slot was acquired.
+         */
+        public long getSince() {
+            return since;
+        }
+
+        /**
+         * Slot restored on startup for a container which survived a restart, so {@link #getOwner()} is a build ID
+         * and there's no {@link DockerSlave} for it.
+         */
+        public boolean isRestored() {
+            return restored;
+        }
+
+        @Override
+        public String toString() {
+            return owner + " (container " + containerId + ", constraint '" + constraint + "')";
+        }
     }
 }
@@ -1,8 +1,31 @@
 package com.cloudbees.jenkins.plugins.dockerslaves;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+
 public class ContainerInstance {
     final String imageName;
-    String id;
+    volatile String id;
+
+    /**
+     * Epoch time in milliseconds lifecycle events offsets are relative to.
+     */
+    private long since;
+
+    /**
+     * Lifecycle events, as space separated event code and offset in milliseconds, i.e. <code>R0 I1250 C1900</code>.
+     * Stored as a single string so long build histories don't cost an object per event.
+     */
+    private String timeline;
+
+    private Integer exitCode;
+
+    /**
+     * Time spent waiting for containers cap, in milliseconds.
+     */
+    private Long capWait;
 
     public ContainerInstance(String imageName) {
         this.imageName = imageName;
@@ -24,4 +47,107 @@ public class ContainerInstance {
     public void setId(String id) {
         this.id = id;
     }
+
+    public Integer getExitCode() {
+        return exitCode;
+    }
+
+    public void setExitCode(int exitCode) {
+        this.exitCode = exitCode;
+    }
+
+    public Long getCapWait() {
+        return capWait;
+    }
+
+    public void setCapWait(long capWait) {
+        this.capWait = capWait;
+    }
+
+    public void record(Event event) {
+        record(event, System.currentTimeMillis());
+    }
+
+    public synchronized void record(Event event, long timestamp) {
+        if (timeline == null) {
+            since = timestamp;
+            timeline = event.code + "0";
+        } else {
+            timeline = timeline + " " + event.code + (timestamp - since);
+        }
+    }
+
+    /**
+     * Lifecycle events, in chronological order.
+     */
+    public synchronized List<TimelineEntry> getTimeline() {
+        if (timeline == null) return Collections.emptyList();
+        List<TimelineEntry> entries = new ArrayList<TimelineEntry>();
+        for (String entry : timeline.split(" ")) {
+            Event event = Event.forCode(entry.charAt(0));
+            if (event == null) continue;
+            entries.add(new TimelineEntry(event, since + Long.parseLong(entry.substring(1))));
+        }
+        Collections.sort(entries);
+        return entries;
+    }
+
+    public enum Event {
+        REQUESTED('R', "Requested"),
+        IMAGE_RESOLVED('I', "Image resolved"),
+        CREATED('C', "Created"),
+        USER_INJECTED('U', "User injected"),
+        STARTED('S', "Started"),
+        EXITED('X', "Exited"),
+        REMOVED('D', "Removed");
+
+        private final char code;
+
+        private final String displayName;
+
+        Event(char code, String displayName) {
+            this.code = code;
+            this.displayName = displayName;
+        }
+
+        public String getDisplayName() {
+            return displayName;
+        }
+
+        static Event forCode(char code) {
+            for (Event event : values()) {
+                if (event.code == code) return event;
+            }
+            return null;
+        }
+    }
+
+    public static class TimelineEntry implements Comparable<TimelineEntry> {
+
+        private final Event event;
+
+        private final long timestamp;
+
+        TimelineEntry(Event event, long timestamp) {
+            this.event = event;
+            this.timestamp = timestamp;
+        }
+
+        public Event getEvent() {
+            return event;
+        }
+
+        public long getTimestamp() {
+            return timestamp;
+        }
+
+        public Date getDate() {
+            return new Date(timestamp);
+        }
+
+        @Override
+        public int compareTo(TimelineEntry o) {
+            return timestamp < o.timestamp ? -1 : (timestamp == o.timestamp ? 0 : 1);
+        }
+    }
 }
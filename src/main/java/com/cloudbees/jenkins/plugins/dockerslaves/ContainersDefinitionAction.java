@@ -0,0 +1,59 @@
+/*
+ * The MIT License
+ *
+ *  Copyright (c) 2015, CloudBees, Inc.
+ *
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  of this software and associated documentation files (the "Software"), to deal
+ *  in the Software without restriction, including without limitation the rights
+ *  to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  copies of the Software, and to permit persons to whom the Software is
+ *  furnished to do so, subject to the following conditions:
+ *
+ *  The above copyright notice and this permission notice shall be included in
+ *  all copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ *  THE SOFTWARE.
+ *
+ */
+
+package com.cloudbees.jenkins.plugins.dockerslaves;
+
+import hudson.model.Actionable;
+import hudson.model.InvisibleAction;
+import hudson.model.Job;
+
+/**
+ * Containers definition resolved for a single queued item, i.e. a matrix configuration, so it doesn't need to be
+ * stored as a job property. Copied from the queue item to the build.
+ */
+public class ContainersDefinitionAction extends InvisibleAction {
+
+    private final JobBuildsContainersDefinition definition;
+
+    public ContainersDefinitionAction(JobBuildsContainersDefinition definition) {
+        this.definition = definition;
+    }
+
+    public JobBuildsContainersDefinition getDefinition() {
+        return definition;
+    }
+
+    /**
+     * Containers definition for a queued item or a build, from {@link ContainersDefinitionAction} if set, else from
+     * job property.
+     */
+    public static JobBuildsContainersDefinition getDefinition(Job job, Actionable actionable) {
+        ContainersDefinitionAction action = actionable != null ? actionable.getAction(ContainersDefinitionAction.class) : null;
+        if (action != null) {
+            return action.getDefinition();
+        }
+        return (JobBuildsContainersDefinition) job.getProperty(JobBuildsContainersDefinition.class);
+    }
+}
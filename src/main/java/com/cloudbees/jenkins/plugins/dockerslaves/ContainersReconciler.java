@@ -0,0 +1,235 @@
+/*
+ * The MIT License
+ *
+ *  Copyright (c) 2015, CloudBees, Inc.
+ *
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  of this software and associated documentation files (the "Software"), to deal
+ *  in the Software without restriction, including without limitation the rights
+ *  to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  copies of the Software, and to permit persons to whom the Software is
+ *  furnished to do so, subject to the following conditions:
+ *
+ *  The above copyright notice and this permission notice shall be included in
+ *  all copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ *  THE SOFTWARE.
+ *
+ */
+
+package com.cloudbees.jenkins.plugins.dockerslaves;
+
+import hudson.Launcher;
+import hudson.Util;
+import hudson.init.InitMilestone;
+import hudson.init.Initializer;
+import hudson.model.Job;
+import hudson.model.Run;
+import hudson.model.TaskListener;
+import hudson.security.ACL;
+import hudson.util.StreamTaskListener;
+import jenkins.model.Jenkins;
+import jenkins.util.Timer;
+import org.acegisecurity.context.SecurityContext;
+import org.acegisecurity.context.SecurityContextHolder;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * On startup, match containers found on docker host with the builds they belong to, so {@link ContainerCountLock}
+ * counts containers which survived a restart, and containers left behind by builds which are not running anymore
+ * get removed.
+ * <p>
+ * Remoting containers of completed builds are only stopped, as they host workspace for next build. Their removal is
+ * handled by {@link RemotingContainerCollector}.
+ * <p>
+ * Startup only waits a bounded time for reconciliation, so an unreachable docker host doesn't block Jenkins: builds
+ * may then briefly exceed containers cap until surviving containers are counted.
+ */
+public class ContainersReconciler {
+
+    private static final long STARTUP_TIMEOUT = Long.getLong(ContainersReconciler.class.getName() + ".startupTimeout", TimeUnit.SECONDS.toMillis(30));
+
+    private final DockerSlaves plugin;
+
+    private final TaskListener listener;
+
+    /**
+     * Containers referenced by running builds, as container ID -&gt; context.
+     */
+    private final Map<String, JobBuildsContainersContext> running = new HashMap<String, JobBuildsContainersContext>();
+
+    /**
+     * Builds containers referenced by running builds belong to, as container ID -&gt; build.
+     */
+    private final Map<String, Run<?, ?>> owners = new HashMap<String, Run<?, ?>>();
+
+    /**
+     * Remoting containers referenced by completed builds.
+     */
+    private final Set<String> completed = new HashSet<String>();
+
+    public ContainersReconciler(DockerSlaves plugin, TaskListener listener) {
+        this.plugin = plugin;
+        this.listener = listener;
+    }
+
+    @Initializer(after = InitMilestone.JOB_LOADED)
+    public static void reconcileOnStartup() {
+        final DockerSlaves plugin = DockerSlaves.get();
+        if (plugin == null) return;
+        final Future<?> reconciliation = Timer.get().submit(new Runnable() {
+            @Override
+            public void run() {
+                // all builds have to be looked at, not only the ones anonymous can read
+                final SecurityContext previous = ACL.impersonate(ACL.SYSTEM);
+                try {
+                    new ContainersReconciler(plugin, StreamTaskListener.fromStdout()).reconcile();
+                } catch (IOException e) {
+                    LOGGER.log(Level.WARNING, "Failed to reconcile containers with docker host", e);
+                } catch (InterruptedException e) {
+                    LOGGER.log(Level.WARNING, "Interrupted while reconciling containers with docker host", e);
+                } finally {
+                    SecurityContextHolder.setContext(previous);
+                }
+            }
+        });
+        try {
+            reconciliation.get(STARTUP_TIMEOUT, TimeUnit.MILLISECONDS);
+        } catch (TimeoutException e) {
+            LOGGER.log(Level.WARNING, "Docker host didn''t answer within {0} ms, reconciling containers in background",
+                    STARTUP_TIMEOUT);
+        } catch (ExecutionException e) {
+            LOGGER.log(Level.WARNING, "Failed to reconcile containers with docker host", e.getCause());
+        } catch (InterruptedException e) {
+            LOGGER.log(Level.WARNING, "Interrupted while reconciling containers with docker host", e);
+        }
+    }
+
+    public void reconcile() throws IOException, InterruptedException {
+        collectBuildsContexts();
+
+        final Launcher launcher = new Launcher.LocalLauncher(listener);
+        final DockerDriver driver = new DockerDriver(plugin.getDockerHost());
+        final List<String> toStop = new ArrayList<String>();
+        final List<String> toRemove = new ArrayList<String>();
+        final Map<String, String> leases = new HashMap<String, String>();
+        // don't remove remoting containers if administrator disabled their garbage collection
+        final boolean collectRemoting = plugin.getRemotingContainersRetention() > 0;
+        try {
+            for (String id : driver.listContainers(launcher, DockerDriver.REMOTING_LABEL, "running")) {
+                JobBuildsContainersContext context = running.get(id);
+                if (context != null) {
+                    leases.put(id, Util.fixNull(context.getConstraint()));
+                } else if (completed.contains(id) || !collectRemoting) {
+                    toStop.add(id);
+                } else {
+                    toRemove.add(id);
+                }
+            }
+            if (collectRemoting) {
+                for (String id : driver.listContainers(launcher, DockerDriver.REMOTING_LABEL, "exited")) {
+                    if (!running.containsKey(id) && !completed.contains(id)) {
+                        toRemove.add(id);
+                    }
+                }
+            }
+            for (String label : new String[] {DockerDriver.BUILD_LABEL, DockerDriver.SIDE_LABEL}) {
+                for (String id : driver.listContainers(launcher, label, null)) {
+                    if (!running.containsKey(id)) {
+                        toRemove.add(id);
+                    }
+                }
+            }
+        } finally {
+            driver.close();
+        }
+
+        ContainerCountLock containerCount = plugin.containerCount;
+        synchronized (containerCount) {
+            for (Map.Entry<String, String> lease : leases.entrySet()) {
+                final Run<?, ?> owner = owners.get(lease.getKey());
+                containerCount.restore(owner.getExternalizableId(), owner.getParent().getFullName(), lease.getValue(), lease.getKey());
+            }
+        }
+        LOGGER.log(Level.INFO, "Restored {0} containers cap slot(s), {1} container(s) to stop, {2} to remove",
+                new Object[] {leases.size(), toStop.size(), toRemove.size()});
+
+        if (!toStop.isEmpty() || !toRemove.isEmpty()) {
+            Timer.get().submit(new Runnable() {
+                @Override
+                public void run() {
+                    cleanup(toStop, toRemove);
+                }
+            });
+        }
+    }
+
+    private void cleanup(List<String> toStop, List<String> toRemove) {
+        try {
+            final Launcher launcher = new Launcher.LocalLauncher(listener);
+            final DockerDriver driver = new DockerDriver(plugin.getDockerHost());
+            try {
+                for (String id : toStop) {
+                    driver.stopContainer(launcher, id);
+                }
+                for (String id : toRemove) {
+                    driver.removeContainer(launcher, id, true);
+                }
+            } finally {
+                driver.close();
+            }
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Failed to cleanup orphaned containers", e);
+        } catch (InterruptedException e) {
+            LOGGER.log(Level.WARNING, "Interrupted while cleaning up orphaned containers", e);
+        }
+    }
+
+    /**
+     * Only look at running builds, and the last ones which remoting container might be reused. This avoids loading
+     * the whole build history of all jobs.
+     */
+    private void collectBuildsContexts() {
+        final int retention = Math.max(plugin.getRemotingContainersRetention(), 1);
+        for (Job<?, ?> job : Jenkins.getInstance().getAllItems(Job.class)) {
+            int count = 0;
+            for (Run<?, ?> run : job.getBuilds()) {
+                if (!run.isBuilding() && count >= retention) break;
+                count++;
+
+                JobBuildsContainersContext context = run.getAction(JobBuildsContainersContext.class);
+                if (context == null) continue;
+
+                if (run.isBuilding()) {
+                    for (ContainerInstance instance : context.getContainers()) {
+                        running.put(instance.getId(), context);
+                        owners.put(instance.getId(), run);
+                    }
+                } else if (context.getRemotingContainer() != null) {
+                    completed.add(context.getRemotingContainer().getId());
+                }
+            }
+        }
+    }
+
+    private static final Logger LOGGER = Logger.getLogger(ContainersReconciler.class.getName());
+}
@@ -31,7 +31,6 @@ import hudson.model.Queue;
 import hudson.model.TaskListener;
 import hudson.slaves.AbstractCloudComputer;
 
-import java.io.File;
 import java.io.IOException;
 import java.util.logging.Logger;
 
@@ -42,20 +41,23 @@ public class DockerComputer extends AbstractCloudComputer<DockerSlave> {
 
     private final Job job;
 
+    private final JobBuildsContainersDefinition spec;
+
     private DockerJobContainersProvisioner provisioner;
 
     private TeeTaskListener teeTasklistener;
 
-    public DockerComputer(DockerSlave dockerSlave, Job job) {
+    public DockerComputer(DockerSlave dockerSlave, Job job, JobBuildsContainersDefinition spec) {
         super(dockerSlave);
         this.job = job;
+        this.spec = spec;
     }
 
     /**
      * Create a container provisioner to setup this Jenkins "computer" (aka executor)
      */
     public DockerJobContainersProvisioner createProvisioner() throws IOException, InterruptedException {
-        provisioner = DockerSlaves.get().buildProvisioner(job, teeTasklistener);
+        provisioner = DockerSlaves.get().buildProvisioner(job, spec, teeTasklistener);
         return provisioner;
     }
 
@@ -85,6 +87,9 @@ public class DockerComputer extends AbstractCloudComputer<DockerSlave> {
     public void terminate() {
         LOGGER.info("Stopping Docker Slave after build completion");
         setAcceptingTasks(false);
+        if (teeTasklistener != null) {
+            teeTasklistener.release();
+        }
         try {
             // We use it during development for diagnostic purpose
             if (!Boolean.getBoolean("com.cloudbees.jenkins.plugins.containerslaves.DockerComputer.keepContainer")) {
@@ -98,7 +103,7 @@ public class DockerComputer extends AbstractCloudComputer<DockerSlave> {
     }
 
     public TeeTaskListener initTeeListener(TaskListener computerListener) throws IOException {
-        teeTasklistener = new TeeTaskListener(computerListener, File.createTempFile(getName(),"log"));
+        teeTasklistener = new TeeTaskListener(computerListener, DockerSlaves.get().getLogSpool(), getName());
 
         return teeTasklistener;
     }
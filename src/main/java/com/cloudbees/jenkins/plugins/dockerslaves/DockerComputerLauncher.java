@@ -40,6 +40,7 @@ import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Logger;
 
 /**
@@ -111,7 +112,15 @@ public class DockerComputerLauncher extends ComputerLauncher {
     }
 
     protected void recordFailureOnBuild(final DockerComputer computer, TeeTaskListener teeListener, IOException e) throws IOException, InterruptedException {
+        final DockerSlave slave = computer.getNode();
+        if (slave == null || slave.isForStep()) {
+            // WithContainersStep reports failure by itself, and any queued build of the job isn't the one to fail
+            return;
+        }
         Queue.Item queued = computer.getJob().getQueueItem();
+        if (queued == null) {
+            return;
+        }
         Jenkins.getInstance().getQueue().cancel(queued);
         Queue.Executable executable = queued.task.createExecutable();
         if (executable instanceof Run) {
@@ -128,14 +137,31 @@ public class DockerComputerLauncher extends ComputerLauncher {
         // we need to capture taskListener here, as it's a private field of Computer
         TeeTaskListener teeListener = computer.initTeeListener(listener);
 
+        final long start = System.nanoTime();
         DockerJobContainersProvisioner provisioner = computer.createProvisioner();
+        final ProvisioningMetrics metrics = ProvisioningMetrics.get();
+        final DockerSlave slave = computer.getNode();
+        if (slave != null) {
+            metrics.histogram(ProvisioningMetrics.QUEUE_TO_LAUNCH, provisioner.getEndpoint())
+                    .record(TimeUnit.NANOSECONDS.toMicros(start - slave.getProvisioningStarted()));
+        }
         try {
+            // don't wait for containers cap on a docker host known to be unavailable
+            DockerEndpointHealth.get(provisioner.getEndpoint()).checkAvailable();
             provisioner.prepareRemotingContainer();
             provisioner.launchRemotingContainer(computer, teeListener);
+            metrics.record(ProvisioningMetrics.LAUNCH, provisioner.getEndpoint(), start);
+            if (slave != null) {
+                metrics.record(ProvisioningMetrics.PROVISIONING, provisioner.getEndpoint(), slave.getProvisioningStarted());
+            }
         } catch (IOException e) {
             e.printStackTrace(teeListener.getLogger());
-            computer.terminate();
-            recordFailureOnBuild(computer, teeListener, e);
+            try {
+                // before terminate() releases spooled output, so it reaches the failed build log
+                recordFailureOnBuild(computer, teeListener, e);
+            } finally {
+                computer.terminate();
+            }
             throw e;
         }
     }
@@ -76,7 +76,7 @@ public final class DockerConfigurationBuildWrapper extends SimpleBuildWrapper {
         dotDocker.mkdirs();
 
         Job job = build.getParent();
-        JobBuildsContainersDefinition spec = (JobBuildsContainersDefinition) job.getProperty(JobBuildsContainersDefinition.class);
+        JobBuildsContainersDefinition spec = ContainersDefinitionAction.getDefinition(job, build);
         if (spec == null) {
             return;
         }
@@ -25,21 +25,35 @@
 
 package com.cloudbees.jenkins.plugins.dockerslaves;
 
+import com.cloudbees.plugins.credentials.CredentialsMatchers;
+import com.cloudbees.plugins.credentials.CredentialsProvider;
+import com.cloudbees.plugins.credentials.domains.DomainRequirement;
+import com.cloudbees.plugins.credentials.domains.URIRequirementBuilder;
+import hudson.FilePath;
 import hudson.Launcher;
 import hudson.Proc;
 import hudson.model.Item;
 import hudson.model.Slave;
 import hudson.org.apache.tools.tar.TarOutputStream;
+import hudson.security.ACL;
 import hudson.util.ArgumentListBuilder;
 import jenkins.model.Jenkins;
+import jenkins.util.Timer;
 import org.apache.commons.lang.StringUtils;
 import org.apache.tools.tar.TarEntry;
 import org.apache.tools.tar.TarInputStream;
+import org.jenkinsci.plugins.docker.commons.credentials.DockerServerCredentials;
+import org.jenkinsci.plugins.docker.commons.credentials.DockerServerDomainRequirement;
 import org.jenkinsci.plugins.docker.commons.credentials.DockerServerEndpoint;
 import org.jenkinsci.plugins.docker.commons.credentials.KeyMaterial;
 
 import java.io.*;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.logging.Logger;
 import java.util.logging.Level;
 
@@ -49,15 +63,59 @@ import java.util.logging.Level;
  */
 public class DockerDriver implements Closeable {
 
+    /**
+     * Label set on remoting containers, so they can be found on docker host.
+     */
+    public static final String REMOTING_LABEL = "jenkins-remoting=true";
+
+    public static final String BUILD_LABEL = "jenkins-build=true";
+
+    public static final String SIDE_LABEL = "jenkins-side=true";
+
+    /**
+     * Docker CLI executable, only overridden by tests to run against a fake CLI.
+     */
+    private static volatile String command = "docker";
+
     private final boolean verbose;
 
     final DockerServerEndpoint dockerHost;
 
     final KeyMaterial dockerEnv;
 
+    /**
+     * Remote API client, when the endpoint allows to bypass CLI for container I/O.
+     */
+    final DockerRemoteAPI api;
+
     public DockerDriver(DockerServerEndpoint dockerHost, Item context) throws IOException, InterruptedException {
         this.dockerHost = dockerHost;
         dockerEnv = dockerHost.newKeyMaterialFactory(context, Jenkins.getInstance().getChannel()).materialize();
+        api = DockerRemoteAPI.isSupported(dockerHost) ? new DockerRemoteAPI(dockerHost) : null;
+        verbose = false;
+    }
+
+    /**
+     * Create a driver for background tasks which don't run on behalf of a job, using credentials available
+     * at Jenkins top level.
+     */
+    public DockerDriver(DockerServerEndpoint dockerHost) throws IOException, InterruptedException {
+        this.dockerHost = dockerHost;
+        DockerServerCredentials creds = null;
+        if (dockerHost.getCredentialsId() != null) {
+            List<DomainRequirement> domainRequirements = URIRequirementBuilder.fromUri(dockerHost.getUri()).build();
+            domainRequirements.add(new DockerServerDomainRequirement());
+            creds = CredentialsMatchers.firstOrNull(
+                    CredentialsProvider.lookupCredentials(
+                            DockerServerCredentials.class, Jenkins.getInstance(), ACL.SYSTEM,
+                            domainRequirements),
+                    CredentialsMatchers.withId(dockerHost.getCredentialsId())
+            );
+        }
+        FilePath dotDocker = new FilePath(Jenkins.getInstance().getRootDir()).child("docker-slaves");
+        dotDocker.mkdirs();
+        dockerEnv = dockerHost.newKeyMaterialFactory(dotDocker, creds).materialize();
+        api = DockerRemoteAPI.isSupported(dockerHost) ? new DockerRemoteAPI(dockerHost) : null;
         verbose = false;
     }
 
@@ -76,8 +134,8 @@ public class DockerDriver implements Closeable {
 
         ByteArrayOutputStream out = new ByteArrayOutputStream();
 
-        int status = launchDockerCLI(launcher, args)
-                .stdout(out).stderr(launcher.getListener().getLogger()).join();
+        int status = join(launchDockerCLI(launcher, args)
+                .stdout(out).stderr(launcher.getListener().getLogger()), args);
 
         if (status != 0) {
             return false;
@@ -86,7 +144,91 @@ public class DockerDriver implements Closeable {
         }
     }
 
-    public ContainerInstance createRemotingContainer(Launcher launcher, String image, String constraint) throws IOException, InterruptedException {
+    /**
+     * @param volumes named volumes to mount into the container, as <code>name:path</code> bindings. As other containers
+     *                in the pod use <code>--volumes-from</code>, those are visible to the whole pod.
+     */
+    public ContainerInstance createRemotingContainer(Launcher launcher, String image, String constraint, List<String> volumes) throws IOException, InterruptedException {
+        return createRemotingContainer(launcher, image, constraint, volumes, Collections.<String>emptyList());
+    }
+
+    /**
+     * @param affinities swarm affinity expressions, i.e. <code>image==~maven</code>, to prefer hosts where the pod
+     *                   will start faster. Soft ones (<code>==~</code>) are ignored by swarm if no host matches.
+     */
+    public ContainerInstance createRemotingContainer(Launcher launcher, String image, String constraint, List<String> volumes, List<String> affinities) throws IOException, InterruptedException {
+        ArgumentListBuilder extraArgs = volumes(volumes);
+        for (String affinity : affinities) {
+            extraArgs.add("--env", "affinity:" + affinity);
+        }
+        String containerId = createRemotingContainer(launcher, image, constraint, extraArgs);
+
+        putFileContent(launcher, containerId, "/home/jenkins", "slave.jar", new Slave.JnlpJar("slave.jar").readFully());
+        return new ContainerInstance(image, containerId);
+    }
+
+    /**
+     * Create a fresh remoting container which <code>/home/jenkins</code> volume is seeded with a copy of the one
+     * from <code>source</code>. Copy is ran by a short lived helper container on the docker host, so the workspace
+     * never transit through master, and the new container is placed on the same host as the source volume.
+     */
+    public ContainerInstance forkRemotingContainer(Launcher launcher, String image, String constraint, List<String> volumes, ContainerInstance source) throws IOException, InterruptedException {
+        String volume = getVolumeName(launcher, source.getId(), "/home/jenkins");
+        if (StringUtils.isEmpty(volume)) {
+            throw new IOException("Failed to find /home/jenkins volume of container " + source.getId());
+        }
+
+        // new volume has to be created on the host which owns the source one
+        ArgumentListBuilder extraArgs = volumes(volumes)
+                .add("--env", "affinity:container==" + source.getId());
+        String containerId = createRemotingContainer(launcher, image, constraint, extraArgs);
+
+        ArgumentListBuilder args = new ArgumentListBuilder()
+                .add("run", "--rm")
+                .add("--volumes-from", containerId)
+                .add("-v", volume + ":/mnt/workspace:ro")
+                .add("--user", "0")
+                .add("--entrypoint", "cp")
+                .add(image)
+                .add("-a", "/mnt/workspace/.", "/home/jenkins/");
+
+        int status = join(launchDockerCLI(launcher, args)
+                .stdout(launcher.getListener().getLogger()).stderr(launcher.getListener().getLogger()), args);
+
+        if (status != 0) {
+            removeContainer(launcher, new ContainerInstance(image, containerId));
+            throw new IOException("Failed to fork workspace from container " + source.getId());
+        }
+
+        // slave.jar copied from the source workspace may be outdated
+        putFileContent(launcher, containerId, "/home/jenkins", "slave.jar", new Slave.JnlpJar("slave.jar").readFully());
+        return new ContainerInstance(image, containerId);
+    }
+
+    private ArgumentListBuilder volumes(List<String> volumes) {
+        ArgumentListBuilder args = new ArgumentListBuilder();
+        for (String volume : volumes) {
+            args.add("-v", volume);
+        }
+        return args;
+    }
+
+    protected String getVolumeName(Launcher launcher, String containerId, String destination) throws IOException, InterruptedException {
+        ArgumentListBuilder args = new ArgumentListBuilder()
+                .add("inspect", "-f", "{{range .Mounts}}{{if eq .Destination \"" + destination + "\"}}{{.Name}}{{end}}{{end}}", containerId);
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+        int status = join(launchDockerCLI(launcher, args)
+                .stdout(out).stderr(launcher.getListener().getLogger()), args);
+
+        if (status != 0) {
+            throw new IOException("Failed to inspect container " + containerId);
+        }
+        return out.toString("UTF-8").trim();
+    }
+
+    private String createRemotingContainer(Launcher launcher, String image, String constraint, ArgumentListBuilder extraArgs) throws IOException, InterruptedException {
 
         ArgumentListBuilder args = new ArgumentListBuilder()
                 .add("create", "--interactive")
@@ -94,7 +236,7 @@ public class DockerDriver implements Closeable {
                 // We disable container logging to sdout as we rely on this one as transport for jenkins remoting
                 .add("--log-driver=none")
 
-                .add("--label=jenkins-remoting=true")
+                .add("--label=" + REMOTING_LABEL)
 
                 .add("--env", "TMPDIR=/home/jenkins/.tmp")
         ;
@@ -103,6 +245,8 @@ public class DockerDriver implements Closeable {
             args.add("--env", "constraint:" + constraint);
         }
 
+        args.add(extraArgs.toList());
+
         args
                 .add(image)
                 .add("java")
@@ -115,8 +259,8 @@ public class DockerDriver implements Closeable {
 
         ByteArrayOutputStream out = new ByteArrayOutputStream();
 
-        int status = launchDockerCLI(launcher, args)
-                .stdout(out).stderr(launcher.getListener().getLogger()).join();
+        int status = join(launchDockerCLI(launcher, args)
+                .stdout(out).stderr(launcher.getListener().getLogger()), args);
 
         String containerId = out.toString("UTF-8").trim();
 
@@ -124,35 +268,51 @@ public class DockerDriver implements Closeable {
             throw new IOException("Failed to run docker image");
         }
 
-        putFileContent(launcher, containerId, "/home/jenkins", "slave.jar", new Slave.JnlpJar("slave.jar").readFully());
-        return new ContainerInstance(image, containerId);
+        return containerId;
     }
 
     public void createBuildContainer(Launcher launcher, ContainerInstance buildContainer, ContainerInstance remotingContainer, Launcher.ProcStarter starter) throws IOException, InterruptedException {
+        ArgumentListBuilder args = buildContainerArgs(buildContainer.getImageName(), remotingContainer.getId(),
+                starter.pwd().getRemote(), starter.envs(), starter.cmds(), starter.masks());
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        int status = join(launchDockerCLI(launcher, args)
+                .stdout(out).stderr(launcher.getListener().getLogger()), args);
+
+        final String containerId = out.toString("UTF-8").trim();
+        buildContainer.setId(containerId);
+
+        if (status != 0) {
+            throw new IOException("Failed to run docker image");
+        }
+
+        buildContainer.record(ContainerInstance.Event.CREATED);
+
+        injectJenkinsUnixGroup(launcher, containerId);
+        injectJenkinsUnixUser(launcher, containerId);
+        buildContainer.record(ContainerInstance.Event.USER_INJECTED);
+    }
+
+    /**
+     * Create and start a long-lived build container, which commands are then ran into by {@link #exec}.
+     * Container runs <code>cat</code> with an open stdin, so it just waits for its removal.
+     */
+    public void createExecContainer(Launcher launcher, ContainerInstance buildContainer, ContainerInstance remotingContainer, String workdir) throws IOException, InterruptedException {
         ArgumentListBuilder args = new ArgumentListBuilder()
                 .add("create")
+                .add("--label=" + BUILD_LABEL)
                 .add("--env", "TMPDIR=/home/jenkins/.tmp")
-                .add("--workdir", starter.pwd().getRemote())
+                .add("--workdir", workdir)
                 .add("--volumes-from", remotingContainer.getId())
                 .add("--net=container:" + remotingContainer.getId())
-                .add("--user", "10000:10000");
-
-        for (String env : starter.envs()) {
-            args.add("--env", env);
-        }
-
-        args.add(buildContainer.getImageName());
-
-        List<String> originalCmds = starter.cmds();
-        boolean[] originalMask = starter.masks();
-        for (int i = 0; i < originalCmds.size(); i++) {
-            boolean masked = originalMask == null ? false : i < originalMask.length ? originalMask[i] : false;
-            args.add(originalCmds.get(i), masked);
-        }
+                .add("--user", "10000:10000")
+                .add("--interactive", "--tty")
+                .add(buildContainer.getImageName())
+                .add("cat");
 
         ByteArrayOutputStream out = new ByteArrayOutputStream();
-        int status = launchDockerCLI(launcher, args)
-                .stdout(out).stderr(launcher.getListener().getLogger()).join();
+        int status = join(launchDockerCLI(launcher, args)
+                .stdout(out).stderr(launcher.getListener().getLogger()), args);
 
         final String containerId = out.toString("UTF-8").trim();
         buildContainer.setId(containerId);
@@ -161,8 +321,99 @@ public class DockerDriver implements Closeable {
             throw new IOException("Failed to run docker image");
         }
 
+        buildContainer.record(ContainerInstance.Event.CREATED);
+
         injectJenkinsUnixGroup(launcher, containerId);
         injectJenkinsUnixUser(launcher, containerId);
+        buildContainer.record(ContainerInstance.Event.USER_INJECTED);
+
+        args = new ArgumentListBuilder()
+                .add("start", containerId);
+        status = join(launchDockerCLI(launcher, args)
+                .stdout(new ByteArrayOutputStream()).stderr(launcher.getListener().getLogger()), args);
+        if (status != 0) {
+            throw new IOException("Failed to start build container " + containerId);
+        }
+        buildContainer.record(ContainerInstance.Event.STARTED);
+    }
+
+    /**
+     * Run a command into a running build container. Command's pid is recorded under <code>execId</code>, so it can be
+     * stopped by {@link #killExec(Launcher, String, String)}: killing <code>docker exec</code> CLI doesn't stop it.
+     * <p>
+     * As <code>docker start -a</code> for build containers, command runs as long as the step, so it isn't bound by
+     * {@link DockerEndpointScheduler} concurrency nor deadlines. It still fails fast while endpoint's
+     * {@link DockerEndpointHealth} circuit breaker is open.
+     */
+    public Proc exec(Launcher launcher, String containerId, String execId, Launcher.ProcStarter starter) throws IOException {
+        DockerEndpointHealth.get(ProvisioningMetrics.endpoint(dockerHost)).checkAvailable();
+
+        ArgumentListBuilder args = new ArgumentListBuilder()
+                .add("exec")
+                .add("--user", "10000:10000");
+        if (starter.pwd() != null) {
+            args.add("--workdir", starter.pwd().getRemote());
+        }
+        for (String env : starter.envs()) {
+            args.add("--env", env);
+        }
+        args.add(containerId);
+        args.add("sh", "-c", "echo $$ > " + execPidFile(execId) + " && exec \"$@\"", "sh");
+
+        final List<String> cmds = starter.cmds();
+        final boolean[] masks = starter.masks();
+        for (int i = 0; i < cmds.size(); i++) {
+            boolean masked = masks == null ? false : i < masks.length ? masks[i] : false;
+            args.add(cmds.get(i), masked);
+        }
+
+        Launcher.ProcStarter exec = launchDockerCLI(launcher, args).stdout(starter.stdout());
+        if (starter.stderr() != null && starter.stderr() != starter.stdout()) {
+            exec.stderr(starter.stderr());
+        }
+        return exec.start();
+    }
+
+    /**
+     * Stop a command ran by {@link #exec(Launcher, String, String, Launcher.ProcStarter)}, with its process group if
+     * it leads one.
+     */
+    public int killExec(Launcher launcher, String containerId, String execId) throws IOException, InterruptedException {
+        final String pidFile = execPidFile(execId);
+        ArgumentListBuilder args = new ArgumentListBuilder()
+                .add("exec")
+                .add("--user", "10000:10000")
+                .add(containerId)
+                .add("sh", "-c", "pid=$(cat " + pidFile + ") && { kill -TERM -$pid 2>/dev/null || kill -TERM $pid; }; rm -f " + pidFile);
+        return join(launchDockerCLI(launcher, args)
+                .stdout(new ByteArrayOutputStream()).stderr(launcher.getListener().getLogger()), args);
+    }
+
+    private static String execPidFile(String execId) {
+        return "/tmp/.jenkins-exec-" + execId + ".pid";
+    }
+
+    static ArgumentListBuilder buildContainerArgs(String image, String remotingContainerId, String workdir, String[] envs, List<String> cmds, boolean[] masks) {
+        ArgumentListBuilder args = new ArgumentListBuilder()
+                .add("create")
+                .add("--label=" + BUILD_LABEL)
+                .add("--env", "TMPDIR=/home/jenkins/.tmp")
+                .add("--workdir", workdir)
+                .add("--volumes-from", remotingContainerId)
+                .add("--net=container:" + remotingContainerId)
+                .add("--user", "10000:10000");
+
+        for (String env : envs) {
+            args.add("--env", env);
+        }
+
+        args.add(image);
+
+        for (int i = 0; i < cmds.size(); i++) {
+            boolean masked = masks == null ? false : i < masks.length ? masks[i] : false;
+            args.add(cmds.get(i), masked);
+        }
+        return args;
     }
 
     protected void injectJenkinsUnixGroup(Launcher launcher, String containerId) throws IOException, InterruptedException {
@@ -185,53 +436,108 @@ public class DockerDriver implements Closeable {
         ArgumentListBuilder args = new ArgumentListBuilder()
                 .add("cp", containerId + ":" + filename, "-");
 
-        int status = launchDockerCLI(launcher, args)
-                .stdout(out).stderr(launcher.getListener().getLogger()).join();
+        int status = join(launchDockerCLI(launcher, args)
+                .stdout(out).stderr(launcher.getListener().getLogger()), args);
 
         if (status != 0) {
             throw new IOException("Failed to get file");
         }
 
-        TarInputStream tar = new TarInputStream(new ByteArrayInputStream(out.toByteArray()));
-        TarEntry entry = tar.getNextEntry();
+        untar(out.toByteArray(), outputStream);
+    }
+
+    /**
+     * Extract first entry of a tar archive, as produced by <code>docker cp container:file -</code>.
+     */
+    static void untar(byte[] archive, OutputStream outputStream) throws IOException {
+        TarInputStream tar = new TarInputStream(new ByteArrayInputStream(archive));
+        tar.getNextEntry();
         tar.copyEntryContents(outputStream);
         tar.close();
     }
 
-    protected int putFileContent(Launcher launcher, String containerId, String path, String filename, byte[] content) throws IOException, InterruptedException {
+    /**
+     * Single file tar archive owned by root, as expected by <code>docker cp - container:path</code>.
+     */
+    static byte[] tar(String filename, byte[] content) throws IOException {
         TarEntry entry = new TarEntry(filename);
         entry.setUserId(0);
         entry.setGroupId(0);
         entry.setSize(content.length);
 
-        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ByteArrayOutputStream out = new ByteArrayOutputStream(content.length + 1024);
         TarOutputStream tar = new TarOutputStream(out);
         tar.putNextEntry(entry);
         tar.write(content);
         tar.closeEntry();
         tar.close();
+        return out.toByteArray();
+    }
 
+    protected int putFileContent(Launcher launcher, String containerId, String path, String filename, byte[] content) throws IOException, InterruptedException {
         ArgumentListBuilder args = new ArgumentListBuilder()
                 .add("cp", "-", containerId + ":" + path);
 
-        return launchDockerCLI(launcher, args)
-                .stdin(new ByteArrayInputStream(out.toByteArray()))
-                .stderr(launcher.getListener().getLogger()).join();
+        return join(launchDockerCLI(launcher, args)
+                .stdin(new ByteArrayInputStream(tar(filename, content)))
+                .stderr(launcher.getListener().getLogger()), args);
     }
 
     public Proc startContainer(Launcher launcher, String containerId, OutputStream outputStream) throws IOException, InterruptedException {
+        if (api != null) {
+            return new AttachedProc(api, containerId, outputStream, outputStream);
+        }
         return launchDockerCLI(launcher, new ArgumentListBuilder()
                 .add("start", "-ia", containerId)).stdout(outputStream).start();
     }
 
+    public int stopContainer(Launcher launcher, String containerId) throws IOException, InterruptedException {
+        ArgumentListBuilder args = new ArgumentListBuilder()
+                .add("stop", containerId);
+
+        return join(launchDockerCLI(launcher, args)
+                .stdout(new ByteArrayOutputStream()).stderr(launcher.getListener().getLogger()), args);
+    }
+
+    /**
+     * Stop a container, sending <code>SIGKILL</code> if it's still running after <code>grace</code> seconds, and
+     * escalating to <code>docker kill</code> if stop failed. Returns once container has exited.
+     */
+    public int stopContainer(Launcher launcher, String containerId, int grace) throws IOException, InterruptedException {
+        ArgumentListBuilder args = new ArgumentListBuilder()
+                .add("stop", "--time=" + grace, containerId);
+
+        int status = join(launchDockerCLI(launcher, args)
+                .stdout(new ByteArrayOutputStream()).stderr(launcher.getListener().getLogger()), args);
+        if (status == 0) {
+            return status;
+        }
+
+        args = new ArgumentListBuilder()
+                .add("kill", containerId);
+        return join(launchDockerCLI(launcher, args)
+                .stdout(new ByteArrayOutputStream()).stderr(launcher.getListener().getLogger()), args);
+    }
+
     public int removeContainer(Launcher launcher, ContainerInstance instance) throws IOException, InterruptedException {
+        return removeContainer(launcher, instance.getId(), false);
+    }
+
+    /**
+     * @param volumes also remove anonymous volumes attached to the container. Named volumes are preserved.
+     */
+    public int removeContainer(Launcher launcher, String containerId, boolean volumes) throws IOException, InterruptedException {
         ArgumentListBuilder args = new ArgumentListBuilder()
-                .add("rm", "-f", instance.getId());
+                .add("rm", "-f");
+        if (volumes) {
+            args.add("-v");
+        }
+        args.add(containerId);
 
         ByteArrayOutputStream out = new ByteArrayOutputStream();
 
-        int status = launchDockerCLI(launcher, args)
-                .stdout(out).stderr(launcher.getListener().getLogger()).join();
+        int status = join(launchDockerCLI(launcher, args)
+                .stdout(out).stderr(launcher.getListener().getLogger()), args);
 
         return status;
     }
@@ -241,13 +547,14 @@ public class DockerDriver implements Closeable {
     public void launchSideContainer(Launcher launcher, ContainerInstance instance, ContainerInstance remotingContainer) throws IOException, InterruptedException {
         ArgumentListBuilder args = new ArgumentListBuilder()
                 .add("create")
+                .add("--label=" + SIDE_LABEL)
                 .add("--volumes-from", remotingContainer.getId())
                 .add("--net=container:" + remotingContainer.getId())
                 .add(instance.getImageName());
 
         ByteArrayOutputStream out = new ByteArrayOutputStream();
-        int status = launchDockerCLI(launcher, args)
-                .stdout(out).stderr(launcher.getListener().getLogger()).join();
+        int status = join(launchDockerCLI(launcher, args)
+                .stdout(out).stderr(launcher.getListener().getLogger()), args);
 
         final String containerId = out.toString("UTF-8").trim();
         instance.setId(containerId);
@@ -255,9 +562,131 @@ public class DockerDriver implements Closeable {
         if (status != 0) {
             throw new IOException("Failed to run docker image");
         }
+        instance.record(ContainerInstance.Event.CREATED);
 
         launchDockerCLI(launcher, new ArgumentListBuilder()
                 .add("start", containerId)).start();
+        instance.record(ContainerInstance.Event.STARTED);
+    }
+
+    /**
+     * Make a (maybe fresh new) named volume writable by the jenkins user, as docker creates it owned by root.
+     */
+    public void initVolume(Launcher launcher, String volume, String image) throws IOException, InterruptedException {
+        ArgumentListBuilder args = new ArgumentListBuilder()
+                .add("run", "--rm")
+                .add("-v", volume + ":/mnt/volume")
+                .add("--user", "0")
+                .add("--entrypoint", "chown")
+                .add(image)
+                .add("10000:10000", "/mnt/volume");
+
+        int status = join(launchDockerCLI(launcher, args)
+                .stdout(launcher.getListener().getLogger()).stderr(launcher.getListener().getLogger()), args);
+
+        if (status != 0) {
+            throw new IOException("Failed to initialize volume " + volume);
+        }
+    }
+
+    /**
+     * List IDs of containers with <code>label</code>, and optionally in <code>state</code> (created, running, exited...).
+     */
+    public List<String> listContainers(Launcher launcher, String label, String state) throws IOException, InterruptedException {
+        ArgumentListBuilder args = new ArgumentListBuilder()
+                .add("ps", "-a", "-q", "--no-trunc")
+                .add("--filter", "label=" + label);
+        if (state != null) {
+            args.add("--filter", "status=" + state);
+        }
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+        int status = join(launchDockerCLI(launcher, args)
+                .stdout(out).stderr(launcher.getListener().getLogger()), args);
+
+        if (status != 0) {
+            throw new IOException("Failed to list containers");
+        }
+        return lines(out);
+    }
+
+    public List<String> listVolumes(Launcher launcher) throws IOException, InterruptedException {
+        ArgumentListBuilder args = new ArgumentListBuilder()
+                .add("volume", "ls", "-q");
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+        int status = join(launchDockerCLI(launcher, args)
+                .stdout(out).stderr(launcher.getListener().getLogger()), args);
+
+        if (status != 0) {
+            throw new IOException("Failed to list volumes");
+        }
+        return lines(out);
+    }
+
+    /**
+     * @return disk usage of volume, in kilobytes
+     */
+    public long getVolumeSize(Launcher launcher, String volume, String image) throws IOException, InterruptedException {
+        ArgumentListBuilder args = new ArgumentListBuilder()
+                .add("run", "--rm")
+                .add("-v", volume + ":/mnt/volume:ro")
+                .add("--entrypoint", "du")
+                .add(image)
+                .add("-sk", "/mnt/volume");
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+        int status = join(launchDockerCLI(launcher, args)
+                .stdout(out).stderr(launcher.getListener().getLogger()), args);
+
+        if (status != 0) {
+            throw new IOException("Failed to compute size of volume " + volume);
+        }
+        try {
+            return Long.parseLong(StringUtils.split(out.toString("UTF-8").trim())[0]);
+        } catch (RuntimeException e) {
+            throw new IOException("Unexpected disk usage for volume " + volume + ": " + out.toString("UTF-8"));
+        }
+    }
+
+    /**
+     * Tell if any container, running or not, mounts <code>volume</code>. Docker refuses to remove such a volume.
+     */
+    public boolean isVolumeReferenced(Launcher launcher, String volume) throws IOException, InterruptedException {
+        ArgumentListBuilder args = new ArgumentListBuilder()
+                .add("ps", "-a", "-q")
+                .add("--filter", "volume=" + volume);
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+        int status = join(launchDockerCLI(launcher, args)
+                .stdout(out).stderr(launcher.getListener().getLogger()), args);
+
+        if (status != 0) {
+            throw new IOException("Failed to list containers using volume " + volume);
+        }
+        return !lines(out).isEmpty();
+    }
+
+    public int removeVolume(Launcher launcher, String volume) throws IOException, InterruptedException {
+        ArgumentListBuilder args = new ArgumentListBuilder()
+                .add("volume", "rm", volume);
+
+        return join(launchDockerCLI(launcher, args)
+                .stdout(launcher.getListener().getLogger()).stderr(launcher.getListener().getLogger()), args);
+    }
+
+    private static List<String> lines(ByteArrayOutputStream out) throws UnsupportedEncodingException {
+        List<String> lines = new ArrayList<String>();
+        for (String line : StringUtils.split(out.toString("UTF-8"), "\n")) {
+            if (StringUtils.isNotBlank(line)) {
+                lines.add(line.trim());
+            }
+        }
+        return lines;
     }
 
     public void pullImage(Launcher launcher, String image) throws IOException, InterruptedException {
@@ -265,8 +694,8 @@ public class DockerDriver implements Closeable {
                 .add("pull")
                 .add(image);
 
-        int status =  launchDockerCLI(launcher, args)
-                .stdout(launcher.getListener().getLogger()).join();
+        int status =  join(launchDockerCLI(launcher, args)
+                .stdout(launcher.getListener().getLogger()), args);
 
         if (status != 0) {
             throw new IOException("Failed to pull image " + image);
@@ -279,8 +708,8 @@ public class DockerDriver implements Closeable {
                 .add("-f", "'{{.Id}}'")
                 .add(image);
 
-        return launchDockerCLI(launcher, args)
-                .stdout(launcher.getListener().getLogger()).join() == 0;
+        return join(launchDockerCLI(launcher, args)
+                .stdout(launcher.getListener().getLogger()), args) == 0;
     }
 
     public int buildDockerfile(Launcher launcher, String dockerfilePath, String tag, String constraint, boolean pull)  throws IOException, InterruptedException {
@@ -302,18 +731,141 @@ public class DockerDriver implements Closeable {
 
         args.add(dockerfilePath);
 
-        return launchDockerCLI(launcher, args)
-                .stdout(launcher.getListener().getLogger()).join();
+        return join(launchDockerCLI(launcher, args)
+                .stdout(launcher.getListener().getLogger()), args);
     }
 
     public void prependArgs(ArgumentListBuilder args){
-        if (dockerHost.getUri() != null) {
-            args.prepend("-H", dockerHost.getUri());
+        prependArgs(args, dockerHost.getUri());
+    }
+
+    static void prependArgs(ArgumentListBuilder args, String uri) {
+        if (uri != null) {
+            args.prepend("-H", uri);
         } else {
             LOGGER.log(Level.FINE, "no specified docker host");
         }
 
-        args.prepend("docker");
+        args.prepend(command);
+    }
+
+    /**
+     * Run docker commands with <code>executable</code> instead of docker CLI, <code>null</code> to restore default.
+     */
+    static void setCommand(String executable) {
+        command = executable != null ? executable : "docker";
+    }
+
+    /**
+     * Check docker daemon is responsive, so {@link DockerEndpointHealth} can detect a sick endpoint before builds
+     * wait on it.
+     *
+     * @return <code>true</code> if daemon answered
+     */
+    public boolean checkHealth(Launcher launcher) throws IOException, InterruptedException {
+        ArgumentListBuilder args = new ArgumentListBuilder()
+                .add("version");
+        return join(launchDockerCLI(launcher, args)
+                .stdout(new ByteArrayOutputStream()).stderr(new ByteArrayOutputStream()), args, true) == 0;
+    }
+
+    private int join(Launcher.ProcStarter starter, ArgumentListBuilder args) throws IOException, InterruptedException {
+        return join(starter, args, false);
+    }
+
+    /**
+     * Run docker command to completion, recording its latency in {@link ProvisioningMetrics}. Command is scheduled by
+     * the endpoint's {@link DockerEndpointScheduler}, so it can be delayed under load, and killed if it doesn't
+     * complete before its {@link DockerEndpointScheduler.OpClass#getTimeout()} deadline. Fails fast while the
+     * endpoint's {@link DockerEndpointHealth} circuit breaker is open.
+     *
+     * @param probe command is a health check, which is let through as a trial once breaker cool down has elapsed
+     */
+    private int join(Launcher.ProcStarter starter, ArgumentListBuilder args, boolean probe) throws IOException, InterruptedException {
+        final String operation = operation(args);
+        final String endpoint = ProvisioningMetrics.endpoint(dockerHost);
+        final DockerEndpointScheduler scheduler = DockerEndpointScheduler.get(endpoint);
+        final DockerEndpointScheduler.OpClass opClass = DockerEndpointScheduler.OpClass.of(operation);
+        final DockerEndpointHealth health = DockerEndpointHealth.get(endpoint);
+
+        if (probe) {
+            health.enterProbe();
+        } else {
+            health.enter();
+        }
+        final DockerEndpointHealth.ErrorOutputMonitor stderr = starter.stderr() != null
+                ? new DockerEndpointHealth.ErrorOutputMonitor(starter.stderr()) : null;
+        if (stderr != null) {
+            starter.stderr(stderr);
+        }
+        boolean completed = false;
+        try {
+            scheduler.acquire(opClass);
+            final long start = System.nanoTime();
+            try {
+                final Proc proc = starter.start();
+                final AtomicBoolean timedOut = new AtomicBoolean();
+                final Future<?> watchdog = Timer.get().schedule(new Runnable() {
+                    @Override
+                    public void run() {
+                        timedOut.set(true);
+                        try {
+                            proc.kill();
+                        } catch (IOException e) {
+                            LOGGER.log(Level.WARNING, "Failed to kill docker " + operation, e);
+                        } catch (InterruptedException e) {
+                            LOGGER.log(Level.WARNING, "Failed to kill docker " + operation, e);
+                        }
+                    }
+                }, opClass.getTimeout(), TimeUnit.SECONDS);
+                final int status;
+                try {
+                    status = proc.join();
+                } finally {
+                    watchdog.cancel(false);
+                }
+                completed = true;
+                if (timedOut.get()) {
+                    final String reason = "docker " + operation + " didn't complete within " + opClass.getTimeout() + "s";
+                    health.failure(reason);
+                    throw new IOException(reason + " on " + endpoint);
+                }
+                final String unreachable = status != 0 && stderr != null ? stderr.getUnreachable() : null;
+                if (unreachable != null) {
+                    health.failure("docker " + operation + ": " + unreachable);
+                } else if (status != 0 && probe) {
+                    // docker version only fails when daemon can't be reached
+                    health.failure("docker version exited with status " + status);
+                } else {
+                    // any other failure is reported by daemon, so it's alive
+                    health.success();
+                }
+                return status;
+            } finally {
+                scheduler.release(opClass);
+                ProvisioningMetrics.get().record(ProvisioningMetrics.DOCKER + operation, endpoint, start);
+            }
+        } finally {
+            if (!completed && probe) {
+                health.abort();
+            }
+        }
+    }
+
+    /**
+     * Docker command name from a command line as built by {@link #prependArgs(ArgumentListBuilder)},
+     * i.e. <code>create</code> or <code>volume rm</code>.
+     */
+    static String operation(ArgumentListBuilder args) {
+        List<String> cmd = args.toList();
+        int i = 1;
+        if (cmd.size() > i && cmd.get(i).equals("-H")) i += 2;
+        if (cmd.size() <= i) return "";
+        String operation = cmd.get(i);
+        if (operation.equals("volume") && cmd.size() > i + 1) {
+            operation += " " + cmd.get(i + 1);
+        }
+        return operation;
     }
 
     private Launcher.ProcStarter launchDockerCLI(Launcher launcher, ArgumentListBuilder args) {
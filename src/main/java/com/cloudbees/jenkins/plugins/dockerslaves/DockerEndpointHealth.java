@@ -0,0 +1,238 @@
+/*
+ * The MIT License
+ *
+ *  Copyright (c) 2015, CloudBees, Inc.
+ *
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  of this software and associated documentation files (the "Software"), to deal
+ *  in the Software without restriction, including without limitation the rights
+ *  to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  copies of the Software, and to permit persons to whom the Software is
+ *  furnished to do so, subject to the following conditions:
+ *
+ *  The above copyright notice and this permission notice shall be included in
+ *  all copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ *  THE SOFTWARE.
+ *
+ */
+
+package com.cloudbees.jenkins.plugins.dockerslaves;
+
+import org.apache.commons.io.Charsets;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Circuit breaker for a docker endpoint. After a few consecutive failures, i.e. docker commands running past their
+ * deadline or a failed health check, the breaker opens and docker commands fail fast with an {@link IOException}
+ * instead of piling up launcher threads on a hung daemon. Once the cool down period has elapsed, the next health
+ * check is let through as a trial: the breaker closes if it succeeds, and opens again otherwise.
+ * <p>
+ * Failures are detected from command deadlines, as well as from CLI error output telling the daemon can't be reached,
+ * see {@link ErrorOutputMonitor}.
+ */
+public class DockerEndpointHealth {
+
+    private static final int THRESHOLD = Integer.getInteger(DockerEndpointHealth.class.getName() + ".threshold", 3);
+
+    private static final long COOLDOWN = Long.getLong(DockerEndpointHealth.class.getName() + ".cooldown", TimeUnit.MINUTES.toMillis(1));
+
+    private static final ConcurrentMap<String, DockerEndpointHealth> BREAKERS = new ConcurrentHashMap<String, DockerEndpointHealth>();
+
+    public enum State {
+        CLOSED, OPEN, HALF_OPEN
+    }
+
+    private final String endpoint;
+
+    private final int threshold;
+
+    private final long cooldown;
+
+    private State state = State.CLOSED;
+
+    private int failures;
+
+    private long openedAt;
+
+    private String lastFailure;
+
+    DockerEndpointHealth(String endpoint, int threshold, long cooldown) {
+        this.endpoint = endpoint;
+        this.threshold = threshold;
+        this.cooldown = cooldown;
+    }
+
+    public static DockerEndpointHealth get(String endpoint) {
+        DockerEndpointHealth health = BREAKERS.get(endpoint);
+        if (health == null) {
+            health = new DockerEndpointHealth(endpoint, THRESHOLD, COOLDOWN);
+            DockerEndpointHealth existing = BREAKERS.putIfAbsent(endpoint, health);
+            if (existing != null) health = existing;
+        }
+        return health;
+    }
+
+    public static Map<String, DockerEndpointHealth> getBreakers() {
+        return BREAKERS;
+    }
+
+    /**
+     * Fail fast unless endpoint is known to be healthy.
+     */
+    public synchronized void checkAvailable() throws IOException {
+        if (state != State.CLOSED) {
+            throw unavailable();
+        }
+    }
+
+    /**
+     * Register a docker command about to be sent to endpoint. Caller has to report the outcome with either
+     * {@link #success()} or {@link #failure(String)}.
+     */
+    public synchronized void enter() throws IOException {
+        checkAvailable();
+    }
+
+    /**
+     * Register a health check about to be sent to endpoint. Once cool down period has elapsed, this is the only
+     * request let through, as a trial, so recovery doesn't depend on some long running command. Caller has to
+     * report the outcome with either {@link #success()}, {@link #failure(String)} or {@link #abort()}.
+     */
+    public synchronized void enterProbe() throws IOException {
+        if (state == State.OPEN) {
+            if (System.currentTimeMillis() - openedAt < cooldown) {
+                throw unavailable();
+            }
+            state = State.HALF_OPEN;
+            LOGGER.log(Level.INFO, "Docker endpoint {0} cool down elapsed, sending a trial request", endpoint);
+        }
+    }
+
+    public synchronized void success() {
+        if (state != State.CLOSED) {
+            LOGGER.log(Level.INFO, "Docker endpoint {0} is back, closing circuit breaker", endpoint);
+        }
+        state = State.CLOSED;
+        failures = 0;
+    }
+
+    public synchronized void failure(String reason) {
+        failures++;
+        lastFailure = reason;
+        if (state == State.HALF_OPEN || failures >= threshold) {
+            if (state == State.CLOSED) {
+                LOGGER.log(Level.WARNING, "Docker endpoint {0} is unhealthy after {1} failure(s), last one: {2}",
+                        new Object[] {endpoint, failures, reason});
+            }
+            state = State.OPEN;
+            openedAt = System.currentTimeMillis();
+        }
+    }
+
+    /**
+     * Health check didn't complete for some unrelated reason, i.e. interrupted, so it doesn't tell anything about
+     * endpoint.
+     */
+    public synchronized void abort() {
+        if (state == State.HALF_OPEN) {
+            // let next request try again
+            state = State.OPEN;
+        }
+    }
+
+    public synchronized State getState() {
+        return state;
+    }
+
+    public synchronized int getFailures() {
+        return failures;
+    }
+
+    private IOException unavailable() {
+        final long retry = TimeUnit.MILLISECONDS.toSeconds(Math.max(0, openedAt + cooldown - System.currentTimeMillis()));
+        return new IOException("Docker endpoint " + endpoint + " is unavailable (" + lastFailure + "), "
+                + (retry > 0 ? "will retry in " + retry + "s" : "waiting for health check"));
+    }
+
+    /**
+     * Forward docker CLI error output, looking for messages telling the daemon couldn't be reached at all, as opposed
+     * to a command failure reported by daemon. Only the last bytes are kept, as these messages are short and final.
+     */
+    static class ErrorOutputMonitor extends OutputStream {
+
+        // only client side messages: registry errors on pull, i.e. "connection refused", don't tell about daemon
+        private static final String[] UNREACHABLE = {
+                "cannot connect to the docker daemon", "is the docker daemon running", "error during connect",
+                "the server probably has client authentication enabled"
+        };
+
+        private static final int TAIL = 4096;
+
+        private final OutputStream delegate;
+
+        private final ByteArrayOutputStream tail = new ByteArrayOutputStream();
+
+        ErrorOutputMonitor(OutputStream delegate) {
+            this.delegate = delegate;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[] { (byte) b }, 0, 1);
+        }
+
+        @Override
+        public synchronized void write(byte[] b, int off, int len) throws IOException {
+            delegate.write(b, off, len);
+            if (len >= TAIL) {
+                tail.reset();
+                tail.write(b, off + len - TAIL, TAIL);
+            } else {
+                if (tail.size() + len > TAIL) {
+                    byte[] kept = tail.toByteArray();
+                    int keep = TAIL - len;
+                    tail.reset();
+                    tail.write(kept, kept.length - keep, keep);
+                }
+                tail.write(b, off, len);
+            }
+        }
+
+        @Override
+        public void flush() throws IOException {
+            delegate.flush();
+        }
+
+        /**
+         * @return the message telling daemon can't be reached, or <code>null</code>.
+         */
+        synchronized String getUnreachable() {
+            final String output = new String(tail.toByteArray(), Charsets.UTF_8).toLowerCase(Locale.ENGLISH);
+            for (String message : UNREACHABLE) {
+                if (output.contains(message)) {
+                    return message;
+                }
+            }
+            return null;
+        }
+    }
+
+    private static final Logger LOGGER = Logger.getLogger(DockerEndpointHealth.class.getName());
+}
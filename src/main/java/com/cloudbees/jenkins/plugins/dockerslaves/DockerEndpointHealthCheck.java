@@ -0,0 +1,74 @@
+/*
+ * The MIT License
+ *
+ *  Copyright (c) 2015, CloudBees, Inc.
+ *
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  of this software and associated documentation files (the "Software"), to deal
+ *  in the Software without restriction, including without limitation the rights
+ *  to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  copies of the Software, and to permit persons to whom the Software is
+ *  furnished to do so, subject to the following conditions:
+ *
+ *  The above copyright notice and this permission notice shall be included in
+ *  all copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ *  THE SOFTWARE.
+ *
+ */
+
+package com.cloudbees.jenkins.plugins.dockerslaves;
+
+import hudson.Extension;
+import hudson.Launcher;
+import hudson.model.AsyncPeriodicWork;
+import hudson.model.TaskListener;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Periodically run <code>docker version</code> against docker host, so {@link DockerEndpointHealth} opens its circuit
+ * breaker on a hung daemon before builds pile up waiting for it, and closes it as soon as daemon is back even when
+ * no build is trying to provision a slave.
+ */
+@Extension
+public class DockerEndpointHealthCheck extends AsyncPeriodicWork {
+
+    public DockerEndpointHealthCheck() {
+        super("Docker endpoint health check");
+    }
+
+    @Override
+    public long getRecurrencePeriod() {
+        return TimeUnit.MINUTES.toMillis(1);
+    }
+
+    @Override
+    protected void execute(TaskListener listener) throws IOException, InterruptedException {
+        final DockerSlaves plugin = DockerSlaves.get();
+        final String endpoint = ProvisioningMetrics.endpoint(plugin.getDockerHost());
+
+        final Launcher launcher = new Launcher.LocalLauncher(listener);
+        final DockerDriver driver = new DockerDriver(plugin.getDockerHost());
+        try {
+            boolean healthy = driver.checkHealth(launcher);
+            LOGGER.log(Level.FINE, "Docker endpoint {0} healthy: {1}", new Object[] {endpoint, healthy});
+        } catch (IOException e) {
+            // circuit breaker is open, or health check timed out
+            LOGGER.log(Level.FINE, "Docker endpoint " + endpoint + " health check failed", e);
+        } finally {
+            driver.close();
+        }
+    }
+
+    private static final Logger LOGGER = Logger.getLogger(DockerEndpointHealthCheck.class.getName());
+}
@@ -0,0 +1,262 @@
+/*
+ * The MIT License
+ *
+ *  Copyright (c) 2015, CloudBees, Inc.
+ *
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  of this software and associated documentation files (the "Software"), to deal
+ *  in the Software without restriction, including without limitation the rights
+ *  to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  copies of the Software, and to permit persons to whom the Software is
+ *  furnished to do so, subject to the following conditions:
+ *
+ *  The above copyright notice and this permission notice shall be included in
+ *  all copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ *  THE SOFTWARE.
+ *
+ */
+
+package com.cloudbees.jenkins.plugins.dockerslaves;
+
+import java.util.Comparator;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Smooth docker CLI requests sent to a single docker endpoint, so a burst of builds starting at once doesn't hit
+ * the daemon with hundreds of concurrent <code>create</code> and <code>cp</code>. Each request first needs a token
+ * from its {@link OpClass} bucket, then one of the endpoint's concurrency slots. Waiting requests are served by
+ * {@link OpClass} priority, so short <code>inspect</code> or <code>rm</code> don't queue behind a <code>pull</code>.
+ * As priority only applies to admission, a few slots are also reserved to short requests, and <code>pull</code> has
+ * its own concurrency limit, so long running commands can't hold every slot.
+ * <p>
+ * Rates are set per class with system properties, i.e. <code>DockerEndpointScheduler.pull.rate</code> as requests
+ * per second, with a burst of twice the rate unless <code>DockerEndpointScheduler.pull.burst</code> is set.
+ */
+public class DockerEndpointScheduler {
+
+    private static final int CONCURRENCY = Integer.getInteger(DockerEndpointScheduler.class.getName() + ".concurrency", 16);
+
+    /**
+     * Slots only used by {@link OpClass#isShort()} requests.
+     */
+    private static final int RESERVED = Integer.getInteger(DockerEndpointScheduler.class.getName() + ".reserved", 4);
+
+    private static final ConcurrentMap<String, DockerEndpointScheduler> SCHEDULERS = new ConcurrentHashMap<String, DockerEndpointScheduler>();
+
+    /**
+     * Docker operations grouped by cost, in priority order. Each class also has a deadline, in seconds, set by
+     * <code>DockerEndpointScheduler.pull.timeout</code> system property, after which the command is killed, and
+     * an optional concurrency limit set by <code>DockerEndpointScheduler.pull.concurrency</code>.
+     */
+    public enum OpClass {
+        INSPECT(50, 60, 0), REMOVE(20, 120, 0), CREATE(20, 300, 0), COPY(20, 1800, 0), PULL(2, 3600, 4);
+
+        private final double rate;
+        private final double burst;
+        private final long timeout;
+        private final int concurrency;
+
+        OpClass(int defaultRate, long defaultTimeout, int defaultConcurrency) {
+            final String prefix = DockerEndpointScheduler.class.getName() + "." + name().toLowerCase() + ".";
+            this.rate = Double.parseDouble(System.getProperty(prefix + "rate", Integer.toString(defaultRate)));
+            this.burst = Double.parseDouble(System.getProperty(prefix + "burst", Double.toString(2 * rate)));
+            this.timeout = Long.getLong(prefix + "timeout", defaultTimeout);
+            this.concurrency = Integer.getInteger(prefix + "concurrency", defaultConcurrency);
+        }
+
+        /**
+         * @return <code>true</code> for requests which can use reserved slots
+         */
+        public boolean isShort() {
+            return this == INSPECT || this == REMOVE;
+        }
+
+        /**
+         * @return deadline for a command of this class to complete, in seconds.
+         */
+        public long getTimeout() {
+            return timeout;
+        }
+
+        /**
+         * @param operation docker command, as returned by {@link DockerDriver#operation(hudson.util.ArgumentListBuilder)}
+         */
+        public static OpClass of(String operation) {
+            if (operation.equals("pull") || operation.equals("build")) return PULL;
+            // docker run is only used to copy or chown volumes content
+            if (operation.equals("cp") || operation.equals("run")) return COPY;
+            if (operation.equals("rm") || operation.equals("rmi") || operation.equals("volume rm")) return REMOVE;
+            if (operation.equals("inspect") || operation.equals("ps") || operation.equals("images")
+                    || operation.equals("version") || operation.equals("volume ls") || operation.equals("volume inspect")) return INSPECT;
+            return CREATE;
+        }
+    }
+
+    private final String endpoint;
+
+    private final int concurrency;
+
+    private final int reserved;
+
+    private final TokenBucket[] buckets = new TokenBucket[OpClass.values().length];
+
+    private final TreeSet<Ticket> waiting = new TreeSet<Ticket>(new Comparator<Ticket>() {
+        @Override
+        public int compare(Ticket a, Ticket b) {
+            int c = a.op.compareTo(b.op);
+            return c != 0 ? c : Long.compare(a.seq, b.seq);
+        }
+    });
+
+    private final int[] queued = new int[OpClass.values().length];
+
+    private int running;
+
+    private final int[] runningByClass = new int[OpClass.values().length];
+
+    private long seq;
+
+    DockerEndpointScheduler(String endpoint, int concurrency, int reserved) {
+        this.endpoint = endpoint;
+        this.concurrency = concurrency;
+        this.reserved = Math.min(reserved, concurrency - 1);
+        for (OpClass op : OpClass.values()) {
+            buckets[op.ordinal()] = new TokenBucket(op.rate, op.burst);
+        }
+    }
+
+    public static DockerEndpointScheduler get(String endpoint) {
+        DockerEndpointScheduler scheduler = SCHEDULERS.get(endpoint);
+        if (scheduler == null) {
+            scheduler = new DockerEndpointScheduler(endpoint, CONCURRENCY, RESERVED);
+            DockerEndpointScheduler existing = SCHEDULERS.putIfAbsent(endpoint, scheduler);
+            if (existing != null) scheduler = existing;
+        }
+        return scheduler;
+    }
+
+    public static Map<String, DockerEndpointScheduler> getSchedulers() {
+        return SCHEDULERS;
+    }
+
+    /**
+     * Wait for a rate token and a concurrency slot to run an <code>op</code> request. Caller has to
+     * {@link #release(OpClass)} the slot once the request completes.
+     */
+    public void acquire(OpClass op) throws InterruptedException {
+        final long start = System.nanoTime();
+        synchronized (this) {
+            final Ticket ticket = new Ticket(op, seq++);
+            waiting.add(ticket);
+            queued[op.ordinal()]++;
+            try {
+                while (true) {
+                    long now = System.nanoTime();
+                    long delay = Long.MAX_VALUE;
+                    boolean admitted = false;
+                    if (running < concurrency) {
+                        // first waiter, by priority, which has a slot and a token available goes
+                        for (Ticket t : waiting) {
+                            if (!hasSlot(t.op)) continue;
+                            long d = buckets[t.op.ordinal()].delay(now);
+                            if (d == 0) {
+                                admitted = t == ticket;
+                                break;
+                            }
+                            delay = Math.min(delay, d);
+                        }
+                    }
+                    if (admitted) {
+                        buckets[op.ordinal()].take();
+                        running++;
+                        runningByClass[op.ordinal()]++;
+                        break;
+                    }
+                    if (delay == Long.MAX_VALUE) {
+                        wait();
+                    } else {
+                        TimeUnit.NANOSECONDS.timedWait(this, delay);
+                    }
+                }
+            } finally {
+                waiting.remove(ticket);
+                queued[op.ordinal()]--;
+                notifyAll();
+            }
+        }
+        ProvisioningMetrics.get().record(ProvisioningMetrics.DOCKER_WAIT + op.name().toLowerCase(), endpoint, start);
+    }
+
+    private boolean hasSlot(OpClass op) {
+        if (running >= concurrency) return false;
+        if (!op.isShort() && running >= concurrency - reserved) return false;
+        return op.concurrency <= 0 || runningByClass[op.ordinal()] < op.concurrency;
+    }
+
+    public synchronized void release(OpClass op) {
+        running--;
+        runningByClass[op.ordinal()]--;
+        notifyAll();
+    }
+
+    public synchronized int getQueueDepth(OpClass op) {
+        return queued[op.ordinal()];
+    }
+
+    public synchronized int getRunning() {
+        return running;
+    }
+
+    private static final class Ticket {
+        final OpClass op;
+        final long seq;
+
+        Ticket(OpClass op, long seq) {
+            this.op = op;
+            this.seq = seq;
+        }
+    }
+
+    /**
+     * Classic token bucket, refilled lazily. A non positive rate disables throttling.
+     */
+    static final class TokenBucket {
+        private final double rate;
+        private final double capacity;
+        private double tokens;
+        private long refilled = System.nanoTime();
+
+        TokenBucket(double rate, double capacity) {
+            this.rate = rate;
+            this.capacity = Math.max(1, capacity);
+            this.tokens = this.capacity;
+        }
+
+        /**
+         * @return nanoseconds until a token is available, 0 if one is available now.
+         */
+        long delay(long now) {
+            if (rate <= 0) return 0;
+            tokens = Math.min(capacity, tokens + (now - refilled) * rate / 1e9);
+            refilled = now;
+            if (tokens >= 1) return 0;
+            return Math.max(1, (long) ((1 - tokens) * 1e9 / rate));
+        }
+
+        void take() {
+            if (rate <= 0) return;
+            tokens -= 1;
+        }
+    }
+}
@@ -30,6 +30,7 @@ import hudson.Proc;
 import hudson.model.Job;
 import hudson.model.Run;
 import hudson.model.TaskListener;
+import hudson.remoting.Channel;
 import hudson.slaves.CommandLauncher;
 import hudson.slaves.SlaveComputer;
 import hudson.util.ArgumentListBuilder;
@@ -37,6 +38,21 @@ import org.apache.commons.lang.StringUtils;
 import org.jenkinsci.plugins.docker.commons.credentials.DockerServerEndpoint;
 
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -48,6 +64,17 @@ public class DockerJobContainersProvisioner {
 
     private static final int BASE_RETRY_DELAY = 2000, MAX_RETRY_DELAY = BASE_RETRY_DELAY * 30;
 
+    /**
+     * Maximum number of steps running at the same time into a pod, from build container launch until the step
+     * process exits, so parallel branches don't flood docker daemon nor the pod's resources.
+     */
+    private static final int MAX_CONCURRENT_LAUNCHES = Integer.getInteger(DockerJobContainersProvisioner.class.getName() + ".maxConcurrentLaunches", 4);
+
+    /**
+     * Seconds a killed build container is given to exit on <code>SIGTERM</code> before <code>SIGKILL</code>.
+     */
+    private static final int STOP_GRACE = Integer.getInteger(DockerJobContainersProvisioner.class.getName() + ".stopGrace", 5);
+
     private final JobBuildsContainersContext context;
 
     private final TaskListener slaveListener;
@@ -60,20 +87,85 @@ public class DockerJobContainersProvisioner {
 
     private final String remotingImage;
     private final String scmImage;
-    private String buildImage;
+    /**
+     * Build image, resolved once even when parallel branches launch their first command at the same time.
+     */
+    private final AtomicReference<FutureTask<String>> buildImage = new AtomicReference<FutureTask<String>>();
+
+    /**
+     * Side containers startup, ran once by the first command launched after SCM checkout.
+     */
+    private final AtomicReference<FutureTask<Void>> sideContainersStarted = new AtomicReference<FutureTask<Void>>();
+
+    private final Semaphore launchPermits = new Semaphore(MAX_CONCURRENT_LAUNCHES, true);
+
+    /**
+     * Long-lived build container commands are ran into, when used as a pod by {@link WithContainersStep}.
+     */
+    private volatile ContainerInstance execContainer;
+
+    /**
+     * Containers cap slot held by this pod, released once by {@link #releaseCapacity()}.
+     */
+    private final AtomicReference<ContainerCountLock.Lease> lease = new AtomicReference<ContainerCountLock.Lease>();
+
+    /**
+     * {@link System#nanoTime()} a build container was first killed, or 0, for {@link ProvisioningMetrics#ABORT_TO_FREE}.
+     */
+    private final AtomicLong aborted = new AtomicLong();
+
+    /**
+     * Remoting container from previous build, which workspace is forked when
+     * {@link JobBuildsContainersDefinition#isForkWorkspace()} is set.
+     */
+    private ContainerInstance previousRemotingContainer;
+
+    /**
+     * Cache volumes to mount into remoting container, as volume name -&gt; mount path.
+     */
+    private final Map<String, String> cacheVolumes = new LinkedHashMap<String, String>();
+
+    /**
+     * Docker endpoint name, for {@link ProvisioningMetrics}.
+     */
+    private final String endpoint;
+
+    /**
+     * Owner of containers cap reserved for this job, i.e. the matrix build which queued this configuration.
+     * @see MatrixBuildProvisioner
+     */
+    private final String reservationOwner;
+
+    /**
+     * Job's estimated build duration in milliseconds, for {@link AdmissionPolicy}.
+     */
+    private final long estimatedDuration;
+
+    /**
+     * Job full name, for {@link CapacityQuota}s.
+     */
+    private final String jobName;
 
     private static final Logger LOGGER = Logger.getLogger(DockerJobContainersProvisioner.class.getName());
 
-    public DockerJobContainersProvisioner(Job job, DockerServerEndpoint dockerHost, TaskListener slaveListener, String remotingImage, String scmImage, String defaultConstraint) throws IOException, InterruptedException {
+    public DockerJobContainersProvisioner(Job job, JobBuildsContainersDefinition spec, DockerServerEndpoint dockerHost, TaskListener slaveListener, String remotingImage, String scmImage, String defaultConstraint) throws IOException, InterruptedException {
         this.slaveListener = slaveListener;
         this.driver = new DockerDriver(dockerHost, job);
+        this.endpoint = ProvisioningMetrics.endpoint(dockerHost);
+        this.reservationOwner = spec.getReservationOwner();
+        this.estimatedDuration = job.getEstimatedDuration();
+        this.jobName = job.getFullName();
         localLauncher = new Launcher.LocalLauncher(slaveListener);
-        spec = (JobBuildsContainersDefinition) job.getProperty(JobBuildsContainersDefinition.class);
+        this.spec = spec;
 
         this.remotingImage = remotingImage;
         this.scmImage = scmImage;
         context = new JobBuildsContainersContext();
 
+        for (CacheVolumeDefinition cache : spec.getCacheVolumes()) {
+            cacheVolumes.put(cache.getVolumeName(job), cache.getMountPath());
+        }
+
         String constraint = spec.getConstraint();
         if (StringUtils.isNotBlank(constraint)) {
             context.setConstraint(constraint);
@@ -91,7 +183,13 @@ public class DockerJobContainersProvisioner {
         if (lastBuild != null) {
             JobBuildsContainersContext previousContext = (JobBuildsContainersContext) lastBuild.getAction(JobBuildsContainersContext.class);
             if (previousContext != null && previousContext.getRemotingContainer() != null) {
-                context.setRemotingContainer(previousContext.getRemotingContainer());
+                if (spec.isForkWorkspace()) {
+                    previousRemotingContainer = previousContext.getRemotingContainer();
+                } else {
+                    // fresh instance, so this build lifecycle events aren't recorded into previous build
+                    ContainerInstance previous = previousContext.getRemotingContainer();
+                    context.setRemotingContainer(new ContainerInstance(previous.getImageName(), previous.getId()));
+                }
             }
         }
     }
@@ -100,91 +198,314 @@ public class DockerJobContainersProvisioner {
         return context;
     }
 
+    /**
+     * Remoting container from previous build this provisioner will fork workspace from, if any.
+     */
+    public ContainerInstance getForkSource() {
+        return previousRemotingContainer;
+    }
+
+    public String getEndpoint() {
+        return endpoint;
+    }
+
     public void prepareRemotingContainer() throws IOException, InterruptedException {
+        final long start = System.nanoTime();
+        // cache volumes can't be evicted until remoting container mounts them
+        final CacheVolumeJanitor janitor = CacheVolumeJanitor.get();
+        final Set<String> unknownVolumes = janitor.acquire(cacheVolumes.keySet());
+        try {
+            doPrepareRemotingContainer(unknownVolumes);
+        } finally {
+            janitor.release(cacheVolumes.keySet());
+            ProvisioningMetrics.get().record(ProvisioningMetrics.PREPARE_REMOTING_CONTAINER, endpoint, start);
+        }
+    }
+
+    private void doPrepareRemotingContainer(Set<String> unknownVolumes) throws IOException, InterruptedException {
+        final long requested = System.currentTimeMillis();
+        final List<String> volumes = new ArrayList<String>();
+        for (Map.Entry<String, String> cache : cacheVolumes.entrySet()) {
+            if (unknownVolumes.contains(cache.getKey())) {
+                driver.initVolume(localLauncher, cache.getKey(), remotingImage);
+            }
+            volumes.add(cache.getKey() + ":" + cache.getValue());
+        }
+
         // if remoting container already exists, we reuse it
+        final ContainerInstance previous = previousRemotingContainer != null ? previousRemotingContainer : context.getRemotingContainer();
         if (context.getRemotingContainer() != null) {
             if (driver.hasContainer(localLauncher, context.getRemotingContainer().getId())) {
                 return;
             }
         }
-        final ContainerInstance remotingContainer = driver.createRemotingContainer(localLauncher, remotingImage, context.getConstraint());
+        if (previousRemotingContainer != null) {
+            if (driver.hasContainer(localLauncher, previousRemotingContainer.getId())) {
+                try {
+                    slaveListener.getLogger().println("Forking workspace from container " + previousRemotingContainer.getId());
+                    final ContainerInstance remotingContainer = driver.forkRemotingContainer(localLauncher, remotingImage, context.getConstraint(), volumes, previousRemotingContainer);
+                    remotingContainer.record(ContainerInstance.Event.REQUESTED, requested);
+                    remotingContainer.record(ContainerInstance.Event.CREATED);
+                    context.setRemotingContainer(remotingContainer);
+                    return;
+                } catch (IOException e) {
+                    // fall back to a fresh workspace
+                    LOGGER.log(Level.WARNING, "Failed to fork workspace from container " + previousRemotingContainer.getId(), e);
+                }
+            }
+        }
+        final ContainerInstance remotingContainer = driver.createRemotingContainer(localLauncher, remotingImage, context.getConstraint(), volumes, getPlacementAffinities(previous));
+        remotingContainer.record(ContainerInstance.Event.REQUESTED, requested);
+        remotingContainer.record(ContainerInstance.Event.CREATED);
         context.setRemotingContainer(remotingContainer);
     }
 
-    public void launchRemotingContainer(final SlaveComputer computer, TaskListener listener) {
+    /**
+     * Swarm soft affinities for a fresh remoting container, when {@link DockerSlaves#isLocalityAwarePlacement()} is
+     * set: prefer the host of the job's previous remoting container, which holds its workspace and cache volumes, then
+     * a host which already has the build image, so the pod doesn't wait for a re-clone or a cold pull. Build containers
+     * then follow remoting container with <code>--volumes-from</code>.
+     */
+    private List<String> getPlacementAffinities(ContainerInstance previous) {
+        final List<String> affinities = new ArrayList<String>();
+        if (!DockerSlaves.get().isLocalityAwarePlacement()) {
+            return affinities;
+        }
+        if (previous != null && previous.getId() != null) {
+            affinities.add("container==~" + previous.getId());
+        }
+        if (spec.getBuildHostImage() instanceof ImageIdContainerDefinition) {
+            // Dockerfile images are built once pod is placed, so there's nothing to look for
+            affinities.add("image==~" + ((ImageIdContainerDefinition) spec.getBuildHostImage()).getImage());
+        }
+        return affinities;
+    }
+
+    public void launchRemotingContainer(final SlaveComputer computer, TaskListener listener) throws IOException, InterruptedException {
         int retryDelay = BASE_RETRY_DELAY;
+        final long capWaitStart = System.nanoTime();
 
-        while (true) {
-            try {
-                ContainerCountLock containerCount = DockerSlaves.get().containerCount;
+        final ContainerCountLock containerCount = DockerSlaves.get().containerCount;
+        final ContainerCountLock.Waiter waiter;
+        synchronized (containerCount) {
+            waiter = containerCount.enqueue(computer.getName(), jobName, context, estimatedDuration);
+        }
+        try {
+            while (true) {
                 synchronized (containerCount) {
-                    if (!containerCount.isLimitReach(context)) {
-                        containerCount.increaseCount(context);
+                    ContainerCountLock.Lease claimed = reservationOwner != null
+                            ? containerCount.claimReservation(reservationOwner, computer.getName(), jobName, context) : null;
+                    if (claimed != null) {
+                        lease.set(claimed);
+                        LOGGER.log(Level.INFO, "Using container slot reserved by {0} for {1}: launching.",
+                                new Object[]{reservationOwner, context.getRemotingContainer().getImageName()});
+                        break;
+                    }
+                    ContainerCountLock.Lease acquired = containerCount.acquire(waiter, context);
+                    if (acquired != null) {
+                        lease.set(acquired);
                         LOGGER.log(
                                 Level.INFO,
                                 "Docker capping limit NOT reached with {0}/{1} container(s) for {2}: launching.",
-                                new Object[]{containerCount.getCount(context), containerCount.getLimit(context), context.getRemotingContainer().getImageName(), retryDelay}
+                                new Object[]{containerCount.getCount(context), containerCount.getLimit(context), context.getRemotingContainer().getImageName()}
                         );
                         break;
-
                     }
 
                     LOGGER.log(
-                            Level.INFO,
-                            "Docker capping limit reached with {0}/{1} container(s) for {2}: postponing slave launch by {3} ms.",
+                            Level.FINE,
+                            "Docker capping limit reached with {0}/{1} container(s) for {2}: waiting up to {3} ms for a slot.",
                             new Object[] { containerCount.getCount(context), containerCount.getLimit(context), context.getRemotingContainer().getImageName(), retryDelay }
                     );
                 }
-            } catch (Exception e) {
-                e.printStackTrace();
+                // signaled when picked for a released slot, timeout only bounds the wait in case a signal is missed
+                waiter.await(retryDelay);
+                retryDelay = Math.min(retryDelay * 2, MAX_RETRY_DELAY);
+            }
+        } finally {
+            synchronized (containerCount) {
+                containerCount.cancel(waiter);
             }
+        }
 
-            retryDelay = Math.min(retryDelay * 2, MAX_RETRY_DELAY);
-            try {
-                Thread.sleep(retryDelay);
-            } catch (InterruptedException e) {
-                e.printStackTrace();
+        ProvisioningMetrics.get().record(ProvisioningMetrics.CAP_WAIT, endpoint, capWaitStart);
+        context.getRemotingContainer().setCapWait(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - capWaitStart));
+
+        final long connectStart = System.nanoTime();
+        try {
+            if (driver.api != null) {
+                launchAttachedRemotingContainer(computer, listener);
+                return;
             }
+
+            ArgumentListBuilder args = new ArgumentListBuilder()
+                    .add("start")
+                    .add("-ia", context.getRemotingContainer().getId());
+            driver.prependArgs(args);
+            CommandLauncher launcher = new CommandLauncher(args.toString(), driver.dockerEnv.env());
+            context.getRemotingContainer().record(ContainerInstance.Event.STARTED);
+            launcher.launch(computer, listener);
+        } finally {
+            ProvisioningMetrics.get().record(ProvisioningMetrics.REMOTING_CONNECT, endpoint, connectStart);
         }
+    }
 
-        ArgumentListBuilder args = new ArgumentListBuilder()
-                .add("start")
-                .add("-ia", context.getRemotingContainer().getId());
-        driver.prependArgs(args);
-        CommandLauncher launcher = new CommandLauncher(args.toString(), driver.dockerEnv.env());
-        launcher.launch(computer, listener);
+    /**
+     * Run remoting channel over a hijacked attach connection served by {@link AttachMultiplexer}, so a running slave
+     * costs neither a <code>docker</code> CLI process nor stream copier threads on master.
+     */
+    private void launchAttachedRemotingContainer(SlaveComputer computer, TaskListener listener) throws IOException, InterruptedException {
+        final String id = context.getRemotingContainer().getId();
+        final DockerRemoteAPI.HijackedConnection connection = driver.api.attach(id, true);
+        try {
+            driver.api.start(id);
+        } catch (IOException e) {
+            connection.getChannel().close();
+            throw e;
+        }
+        context.getRemotingContainer().record(ContainerInstance.Event.STARTED);
+
+        final AttachedRemotingStreams streams = new AttachedRemotingStreams(connection, listener.getLogger());
+        streams.register(AttachMultiplexer.get(driver.api));
+        try {
+            computer.setChannel(streams.getInputStream(), streams.getOutputStream(), listener, new Channel.Listener() {
+                @Override
+                public void onClosed(Channel channel, IOException cause) {
+                    streams.close();
+                }
+            });
+        } catch (IOException e) {
+            streams.close();
+            throw e;
+        }
     }
 
     public BuildContainer newBuildContainer(Launcher.ProcStarter starter, TaskListener listener) throws IOException, InterruptedException {
-        if (!context.isPreScm() && spec.getSideContainers().size() > 0 && context.getSideContainers().size() == 0) {
+        final long requested = System.currentTimeMillis();
+        if (!context.isPreScm() && spec.getSideContainers().size() > 0) {
             // In a ideal world we would run side containers when DockerSlave.DockerSlaveSCMListener detect scm checkout completed
             // but then we don't have a ProcStarter reference. So do it first time a command is ran during the build
-            // after scm checkout completed. We detect this is the first time as spec > context
-            createSideContainers(starter, listener);
+            // after scm checkout completed.
+            startSideContainers(starter, listener);
         }
 
         if (context.isPreScm()) {
-            return newBuildContainer(starter, scmImage);
+            return newBuildContainer(starter, scmImage, requested);
         } else {
-            if (buildImage == null) buildImage = spec.getBuildHostImage().getImage(driver, starter, listener, context.getConstraint());
-            return newBuildContainer(starter, buildImage);
+            return newBuildContainer(starter, resolveBuildImage(starter, listener), requested);
+        }
+    }
+
+    private String resolveBuildImage(final Launcher.ProcStarter starter, final TaskListener listener) throws IOException, InterruptedException {
+        return once(buildImage, new Callable<String>() {
+            @Override
+            public String call() throws Exception {
+                return spec.getBuildHostImage().getImage(driver, starter, listener, context.getConstraint());
+            }
+        });
+    }
+
+    private void startSideContainers(final Launcher.ProcStarter starter, final TaskListener listener) throws IOException, InterruptedException {
+        once(sideContainersStarted, new Callable<Void>() {
+            @Override
+            public Void call() throws Exception {
+                createSideContainers(starter, listener);
+                return null;
+            }
+        });
+    }
+
+    /**
+     * Run <code>callable</code> once, concurrent callers waiting for the same result. A failure is reported to all
+     * callers waiting for it, next caller then tries again.
+     */
+    private static <V> V once(AtomicReference<FutureTask<V>> ref, Callable<V> callable) throws IOException, InterruptedException {
+        FutureTask<V> task = ref.get();
+        if (task == null) {
+            final FutureTask<V> created = new FutureTask<V>(callable);
+            if (ref.compareAndSet(null, created)) {
+                created.run();
+            }
+            task = ref.get();
+            if (task == null) task = created;
+        }
+        try {
+            return task.get();
+        } catch (ExecutionException e) {
+            ref.compareAndSet(task, null);
+            final Throwable cause = e.getCause();
+            if (cause instanceof IOException) throw (IOException) cause;
+            if (cause instanceof InterruptedException) throw (InterruptedException) cause;
+            if (cause instanceof RuntimeException) throw (RuntimeException) cause;
+            if (cause instanceof Error) throw (Error) cause;
+            throw new IOException(cause);
         }
     }
 
+    /**
+     * Bound concurrent steps into this pod. A permit is held from launch until the step process exits.
+     */
+    public Semaphore getLaunchPermits() {
+        return launchPermits;
+    }
+
     private void createSideContainers(Launcher.ProcStarter starter, TaskListener listener) throws IOException, InterruptedException {
         for (SideContainerDefinition definition : spec.getSideContainers()) {
             final String name = definition.getName();
+            final long requested = System.currentTimeMillis();
             final String image = definition.getSpec().getImage(driver, starter, listener, context.getConstraint());
             listener.getLogger().println("Starting " + name + " container");
             ContainerInstance container = new ContainerInstance(image);
-            context.getSideContainers().put(name, container);
+            container.record(ContainerInstance.Event.REQUESTED, requested);
+            container.record(ContainerInstance.Event.IMAGE_RESOLVED);
+            context.putSideContainer(name, container);
             driver.launchSideContainer(localLauncher, container, context.getRemotingContainer());
         }
     }
 
-    private BuildContainer newBuildContainer(Launcher.ProcStarter procStarter, String buildImage) {
+    /**
+     * Start side containers and a long-lived build container, so this provisioner runs commands by
+     * <code>docker exec</code> for its whole lifetime, without paying a container startup per command.
+     */
+    public void createExecContainer(TaskListener listener, String workdir) throws IOException, InterruptedException {
+        final long requested = System.currentTimeMillis();
+        if (spec.getSideContainers().size() > 0) {
+            startSideContainers(null, listener);
+        }
+
+        final String image = resolveBuildImage(null, listener);
+        final ContainerInstance c = new ContainerInstance(image);
+        c.record(ContainerInstance.Event.REQUESTED, requested);
+        c.record(ContainerInstance.Event.IMAGE_RESOLVED);
+        context.addBuildContainer(c);
+        listener.getLogger().println("Starting build container from image '" + image + "'");
+        driver.createExecContainer(localLauncher, c, context.getRemotingContainer(), workdir);
+        execContainer = c;
+    }
+
+    public boolean hasExecContainer() {
+        return execContainer != null;
+    }
+
+    public Proc exec(Launcher.ProcStarter starter) throws IOException {
+        final String containerId = execContainer.getId();
+        final String execId = UUID.randomUUID().toString();
+        return new ContainerProc(driver.exec(localLauncher, containerId, execId, starter), null) {
+            @Override
+            protected void stopContainer() throws IOException, InterruptedException {
+                aborted.compareAndSet(0, System.nanoTime());
+                if (driver.killExec(localLauncher, containerId, execId) != 0) {
+                    LOGGER.log(Level.WARNING, "Failed to kill command {0} in build container {1}", new Object[] {execId, containerId});
+                }
+            }
+        };
+    }
+
+    private BuildContainer newBuildContainer(Launcher.ProcStarter procStarter, String buildImage, long requested) {
         final ContainerInstance c = new ContainerInstance(context.isPreScm() ? scmImage : buildImage);
-        context.getBuildContainers().add(c);
+        c.record(ContainerInstance.Event.REQUESTED, requested);
+        c.record(ContainerInstance.Event.IMAGE_RESOLVED);
+        context.addBuildContainer(c);
         return new BuildContainer(c, procStarter);
     }
 
@@ -193,23 +514,63 @@ public class DockerJobContainersProvisioner {
     }
 
     public Proc startBuildContainer(BuildContainer buildContainer) throws IOException, InterruptedException {
-        return driver.startContainer(localLauncher, buildContainer.instance.getId(), buildContainer.procStarter.stdout());
+        final Proc proc = driver.startContainer(localLauncher, buildContainer.instance.getId(), buildContainer.procStarter.stdout());
+        buildContainer.instance.record(ContainerInstance.Event.STARTED);
+        return new ContainerProc(proc, buildContainer.instance) {
+            @Override
+            protected void stopContainer() throws IOException, InterruptedException {
+                aborted.compareAndSet(0, System.nanoTime());
+                if (driver.stopContainer(localLauncher, instance.getId(), STOP_GRACE) != 0) {
+                    LOGGER.log(Level.WARNING, "Failed to stop build container {0}", instance.getId());
+                }
+            }
+        };
     }
 
     public void clean() throws IOException, InterruptedException {
+        // pod is done, don't have queued builds wait for containers removal
+        releaseCapacity();
+
         for (ContainerInstance instance : context.getSideContainers().values()) {
-            driver.removeContainer(localLauncher, instance);
+            if (driver.removeContainer(localLauncher, instance) == 0) {
+                instance.record(ContainerInstance.Event.REMOVED);
+            }
         }
 
         for (ContainerInstance instance : context.getBuildContainers()) {
-            driver.removeContainer(localLauncher, instance);
+            if (driver.removeContainer(localLauncher, instance) == 0) {
+                instance.record(ContainerInstance.Event.REMOVED);
+            }
         }
 
         driver.close();
 
+        // remoting container is kept for workspace reuse, but exits as slave is terminated
+        if (context.getRemotingContainer() != null) {
+            context.getRemotingContainer().record(ContainerInstance.Event.EXITED);
+        }
+        context.save();
+    }
+
+    /**
+     * Release containers cap slot held by this pod. Safe to call more than once, or if pod never got a slot.
+     */
+    public void releaseCapacity() {
+        final ContainerCountLock.Lease l = lease.getAndSet(null);
+        if (l == null) {
+            return;
+        }
         ContainerCountLock containerCount = DockerSlaves.get().containerCount;
+        boolean released;
         synchronized (containerCount) {
-            containerCount.decreaseCount(context);
+            released = containerCount.release(l);
+        }
+        if (!released) {
+            LOGGER.log(Level.INFO, "Containers cap slot {0} had already been reclaimed", l);
+        }
+        final long abortStart = aborted.get();
+        if (released && abortStart != 0) {
+            ProvisioningMetrics.get().record(ProvisioningMetrics.ABORT_TO_FREE, endpoint, abortStart);
         }
     }
 
@@ -230,4 +591,80 @@ public class DockerJobContainersProvisioner {
             return instance.getImageName();
         }
     }
+
+    /**
+     * Record build container exit into its lifecycle, and have {@link #kill()} actually stop the container,
+     * not just the local process attached to it. Also stops the container if {@link #join()} is interrupted,
+     * as executor does on build abort or timeout.
+     */
+    static abstract class ContainerProc extends Proc {
+
+        private final Proc delegate;
+
+        /**
+         * Container the process runs, or <code>null</code> for a command ran into a long-lived container which
+         * outlives it.
+         */
+        protected final ContainerInstance instance;
+
+        ContainerProc(Proc delegate, ContainerInstance instance) {
+            this.delegate = delegate;
+            this.instance = instance;
+        }
+
+        /**
+         * Stop the docker container, or the command ran into it, so it doesn't keep running once the attached process
+         * is gone.
+         */
+        protected abstract void stopContainer() throws IOException, InterruptedException;
+
+        @Override
+        public boolean isAlive() throws IOException, InterruptedException {
+            return delegate.isAlive();
+        }
+
+        @Override
+        public void kill() throws IOException, InterruptedException {
+            try {
+                stopContainer();
+            } finally {
+                delegate.kill();
+            }
+        }
+
+        @Override
+        public int join() throws IOException, InterruptedException {
+            final int exitCode;
+            try {
+                exitCode = delegate.join();
+            } catch (InterruptedException e) {
+                // build aborted or timed out while container is running
+                kill();
+                if (instance != null) {
+                    instance.record(ContainerInstance.Event.EXITED);
+                }
+                throw e;
+            }
+            if (instance != null) {
+                instance.setExitCode(exitCode);
+                instance.record(ContainerInstance.Event.EXITED);
+            }
+            return exitCode;
+        }
+
+        @Override
+        public InputStream getStdout() {
+            return delegate.getStdout();
+        }
+
+        @Override
+        public InputStream getStderr() {
+            return delegate.getStderr();
+        }
+
+        @Override
+        public OutputStream getStdin() {
+            return delegate.getStdin();
+        }
+    }
 }
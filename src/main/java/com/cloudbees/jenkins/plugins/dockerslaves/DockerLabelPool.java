@@ -0,0 +1,85 @@
+/*
+ * The MIT License
+ *
+ *  Copyright (c) 2015, CloudBees, Inc.
+ *
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  of this software and associated documentation files (the "Software"), to deal
+ *  in the Software without restriction, including without limitation the rights
+ *  to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  copies of the Software, and to permit persons to whom the Software is
+ *  furnished to do so, subject to the following conditions:
+ *
+ *  The above copyright notice and this permission notice shall be included in
+ *  all copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ *  THE SOFTWARE.
+ *
+ */
+
+package com.cloudbees.jenkins.plugins.dockerslaves;
+
+import hudson.model.Label;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+
+/**
+ * Pool of unique labels assigned to queued items, so each build is bound to its own {@link DockerSlave}.
+ * Labels are reused once their slave is removed, so Jenkins label set doesn't grow with every build but stays
+ * bounded by the number of concurrent slaves.
+ */
+public class DockerLabelPool {
+
+    /**
+     * Unique per Jenkins session, so labels assigned to queued items restored from a previous session are never
+     * recycled.
+     */
+    private final String prefix = "docker_" + Long.toHexString(System.currentTimeMillis()) + "_";
+
+    /**
+     * Released label names, most recently released first.
+     */
+    private final Deque<String> free = new ArrayDeque<String>();
+
+    private int created;
+
+    public Label acquire() {
+        String name;
+        synchronized (this) {
+            name = free.pollFirst();
+            if (name == null) {
+                name = prefix + created++;
+            }
+        }
+        return Label.get(name);
+    }
+
+    /**
+     * Return label to pool, once no node nor queued item use it anymore.
+     */
+    public void release(String name) {
+        if (name == null || !name.startsWith(prefix)) return;
+        Label label = Label.get(name);
+        label.reset();
+        synchronized (this) {
+            if (!free.contains(name)) {
+                free.push(name);
+            }
+        }
+    }
+
+    public synchronized int getSize() {
+        return created;
+    }
+
+    public synchronized int getFree() {
+        return free.size();
+    }
+}
@@ -29,9 +29,18 @@ import hudson.Launcher;
 import hudson.Proc;
 import hudson.model.TaskListener;
 import hudson.remoting.VirtualChannel;
+import jenkins.util.Timer;
 
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.lang.Override;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Level;
 import java.util.logging.Logger;
 
 /**
@@ -54,22 +63,141 @@ public class DockerLauncher extends Launcher.DecoratedLauncher {
 
     @Override
     public Proc launch(ProcStarter starter) throws IOException {
+        final Semaphore permits = provisioner.getLaunchPermits();
         try {
-            DockerJobContainersProvisioner.BuildContainer buildContainer = provisioner.newBuildContainer(starter, listener);
-
-            if (!starter.quiet()) {
-                listener.getLogger().append("docker: creating build container from image '"+ buildContainer.getImageName() + "'\n");
+            // parallel branches may share this pod, permit is held until step process exits
+            permits.acquire();
+        } catch (InterruptedException e) {
+            throw new IOException(e);
+        }
+        boolean launched = false;
+        try {
+            final PermitProc proc = new PermitProc(doLaunch(starter), permits);
+            launched = true;
+            // callers may never join, i.e. durable tasks which poll a background process
+            proc.watch(Timer.get());
+            return proc;
+        } catch (InterruptedException e) {
+            throw new IOException(e);
+        } finally {
+            if (!launched) {
+                permits.release();
             }
-            provisioner.createBuildContainer(buildContainer);
+        }
+    }
 
+    private Proc doLaunch(ProcStarter starter) throws IOException, InterruptedException {
+        if (provisioner.hasExecContainer()) {
             if (!starter.quiet()) {
-                listener.getLogger().append("docker: starting build container " + buildContainer.getId().substring(0, 11) + "\n");
                 maskedPrintCommandLine(starter.cmds(), starter.masks(), starter.pwd());
             }
+            return provisioner.exec(starter);
+        }
 
-            return provisioner.startBuildContainer(buildContainer);
-        } catch (InterruptedException e) {
-            throw new IOException(e);
+        DockerJobContainersProvisioner.BuildContainer buildContainer = provisioner.newBuildContainer(starter, listener);
+
+        if (!starter.quiet()) {
+            listener.getLogger().append("docker: creating build container from image '"+ buildContainer.getImageName() + "'\n");
+        }
+        provisioner.createBuildContainer(buildContainer);
+
+        if (!starter.quiet()) {
+            listener.getLogger().append("docker: starting build container " + buildContainer.getId().substring(0, 11) + "\n");
+            maskedPrintCommandLine(starter.cmds(), starter.masks(), starter.pwd());
+        }
+
+        return provisioner.startBuildContainer(buildContainer);
+    }
+
+    /**
+     * Hold a launch permit until process exits. Exit is noticed as process is joined or killed, or by polling
+     * {@link #isAlive()}, as some callers never join.
+     */
+    static class PermitProc extends Proc {
+
+        static final long POLL_PERIOD = TimeUnit.SECONDS.toMillis(1);
+
+        private final Proc delegate;
+
+        private final Semaphore permits;
+
+        private final AtomicBoolean released = new AtomicBoolean();
+
+        private volatile ScheduledFuture<?> watcher;
+
+        PermitProc(Proc delegate, Semaphore permits) {
+            this.delegate = delegate;
+            this.permits = permits;
+        }
+
+        @Override
+        public boolean isAlive() throws IOException, InterruptedException {
+            return delegate.isAlive();
+        }
+
+        @Override
+        public void kill() throws IOException, InterruptedException {
+            try {
+                delegate.kill();
+            } finally {
+                release();
+            }
+        }
+
+        @Override
+        public int join() throws IOException, InterruptedException {
+            try {
+                return delegate.join();
+            } finally {
+                release();
+            }
+        }
+
+        /**
+         * Release permit once process is not alive anymore, even if nobody joins it.
+         */
+        void watch(ScheduledExecutorService executor) {
+            watcher = executor.scheduleWithFixedDelay(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        if (delegate.isAlive()) return;
+                    } catch (IOException e) {
+                        LOGGER.log(Level.FINE, "Failed to check process is alive, assuming it exited", e);
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    release();
+                }
+            }, POLL_PERIOD, POLL_PERIOD, TimeUnit.MILLISECONDS);
+            if (released.get()) {
+                watcher.cancel(false);
+            }
+        }
+
+        private void release() {
+            if (released.compareAndSet(false, true)) {
+                permits.release();
+                final ScheduledFuture<?> w = watcher;
+                if (w != null) {
+                    w.cancel(false);
+                }
+            }
+        }
+
+        @Override
+        public InputStream getStdout() {
+            return delegate.getStdout();
+        }
+
+        @Override
+        public InputStream getStderr() {
+            return delegate.getStderr();
+        }
+
+        @Override
+        public OutputStream getStdin() {
+            return delegate.getStdin();
         }
     }
 }
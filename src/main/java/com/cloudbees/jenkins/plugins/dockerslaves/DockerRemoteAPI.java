@@ -0,0 +1,223 @@
+/*
+ * The MIT License
+ *
+ *  Copyright (c) 2015, CloudBees, Inc.
+ *
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  of this software and associated documentation files (the "Software"), to deal
+ *  in the Software without restriction, including without limitation the rights
+ *  to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  copies of the Software, and to permit persons to whom the Software is
+ *  furnished to do so, subject to the following conditions:
+ *
+ *  The above copyright notice and this permission notice shall be included in
+ *  all copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ *  THE SOFTWARE.
+ *
+ */
+
+package com.cloudbees.jenkins.plugins.dockerslaves;
+
+import org.apache.commons.lang.StringUtils;
+import org.jenkinsci.plugins.docker.commons.credentials.DockerServerEndpoint;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.Charset;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Minimal Docker Remote API client, used for container I/O so it doesn't have to go through a <code>docker</code>
+ * CLI process and its stream pump threads.
+ * <p>
+ * Only plain <code>tcp://</code> endpoints are supported, as a JVM can't open unix sockets without a native library,
+ * and TLS would require to handle key material outside of {@link DockerDriver}. Other endpoints still rely on CLI.
+ */
+public class DockerRemoteAPI {
+
+    private static final Charset ASCII = Charset.forName("US-ASCII");
+
+    private static final Pattern STATUS_CODE = Pattern.compile("\"StatusCode\"\\s*:\\s*(-?\\d+)");
+
+    private final InetSocketAddress address;
+
+    public DockerRemoteAPI(DockerServerEndpoint endpoint) {
+        URI uri = URI.create(endpoint.getUri());
+        this.address = new InetSocketAddress(uri.getHost(), uri.getPort() > 0 ? uri.getPort() : 2375);
+    }
+
+    public static boolean isSupported(DockerServerEndpoint endpoint) {
+        return endpoint.getUri() != null
+                && endpoint.getUri().startsWith("tcp://")
+                && endpoint.getCredentialsId() == null
+                && StringUtils.isEmpty(System.getenv("DOCKER_TLS_VERIFY"))
+                && !Boolean.getBoolean(DockerRemoteAPI.class.getName() + ".disabled");
+    }
+
+    public InetSocketAddress getAddress() {
+        return address;
+    }
+
+    /**
+     * Attach to container streams. Connection is hijacked by docker daemon to transport the raw multiplexed stream,
+     * so this has to be done before the container is started to get all output.
+     */
+    public HijackedConnection attach(String containerId, boolean stdin) throws IOException {
+        String path = "/containers/" + containerId + "/attach?stream=1&stdout=1&stderr=1" + (stdin ? "&stdin=1" : "");
+        SocketChannel channel = SocketChannel.open(address);
+        try {
+            channel.socket().setTcpNoDelay(true);
+            write(channel, "POST " + path + " HTTP/1.1\r\n"
+                    + "Host: docker\r\n"
+                    + "Content-Type: text/plain\r\n"
+                    + "Connection: Upgrade\r\n"
+                    + "Upgrade: tcp\r\n"
+                    + "\r\n");
+
+            ByteBuffer buffer = ByteBuffer.allocate(8 * 1024);
+            int end = readHeaders(channel, buffer);
+            String headers = new String(buffer.array(), 0, end, ASCII);
+            int status = parseStatus(headers);
+            if (status != 101 && status != 200) {
+                throw new IOException("Failed to attach container " + containerId + ": " + headers);
+            }
+            // bytes read after headers belong to the stream
+            buffer.flip();
+            buffer.position(end + 4);
+            return new HijackedConnection(channel, buffer.slice());
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    public void start(String containerId) throws IOException {
+        Response response = post("/containers/" + containerId + "/start");
+        if (response.status != 204 && response.status != 304) {
+            throw new IOException("Failed to start container " + containerId + ": " + response.body);
+        }
+    }
+
+    /**
+     * Block until container exits, and return its exit code.
+     */
+    public int waitFor(String containerId) throws IOException {
+        Response response = post("/containers/" + containerId + "/wait");
+        Matcher m = STATUS_CODE.matcher(response.body);
+        if (response.status != 200 || !m.find()) {
+            throw new IOException("Failed to wait for container " + containerId + ": " + response.body);
+        }
+        return Integer.parseInt(m.group(1));
+    }
+
+    private Response post(String path) throws IOException {
+        SocketChannel channel = SocketChannel.open(address);
+        try {
+            write(channel, "POST " + path + " HTTP/1.1\r\n"
+                    + "Host: docker\r\n"
+                    + "Content-Length: 0\r\n"
+                    + "Connection: close\r\n"
+                    + "\r\n");
+
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            ByteBuffer buffer = ByteBuffer.allocate(4 * 1024);
+            while (channel.read(buffer) >= 0) {
+                out.write(buffer.array(), 0, buffer.position());
+                buffer.clear();
+            }
+            String response = out.toString("UTF-8");
+            int end = response.indexOf("\r\n\r\n");
+            return new Response(parseStatus(response), end < 0 ? "" : response.substring(end + 4));
+        } finally {
+            channel.close();
+        }
+    }
+
+    private static void write(SocketChannel channel, String request) throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap(request.getBytes(ASCII));
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+
+    /**
+     * Read from channel until end of HTTP headers.
+     * @return offset of the <code>\r\n\r\n</code> headers terminator in buffer
+     */
+    private static int readHeaders(SocketChannel channel, ByteBuffer buffer) throws IOException {
+        int scanned = 0;
+        while (true) {
+            if (channel.read(buffer) < 0) {
+                throw new IOException("Connection closed by docker daemon");
+            }
+            byte[] b = buffer.array();
+            for (int i = Math.max(scanned - 3, 0); i + 3 < buffer.position(); i++) {
+                if (b[i] == '\r' && b[i+1] == '\n' && b[i+2] == '\r' && b[i+3] == '\n') {
+                    return i;
+                }
+            }
+            scanned = buffer.position();
+            if (!buffer.hasRemaining()) {
+                throw new IOException("Unexpected HTTP response headers from docker daemon");
+            }
+        }
+    }
+
+    private static int parseStatus(String response) throws IOException {
+        // HTTP/1.1 200 OK
+        String[] statusLine = StringUtils.split(StringUtils.substringBefore(response, "\r\n"), ' ');
+        try {
+            return Integer.parseInt(statusLine[1]);
+        } catch (RuntimeException e) {
+            throw new IOException("Unexpected HTTP response from docker daemon: " + response);
+        }
+    }
+
+    private static class Response {
+        final int status;
+        final String body;
+
+        Response(int status, String body) {
+            this.status = status;
+            this.body = body;
+        }
+    }
+
+    /**
+     * Connection hijacked by docker daemon for a container stream.
+     */
+    public static class HijackedConnection {
+
+        final SocketChannel channel;
+
+        /**
+         * Stream bytes which were received with the HTTP response headers.
+         */
+        final ByteBuffer pending;
+
+        HijackedConnection(SocketChannel channel, ByteBuffer pending) {
+            this.channel = channel;
+            this.pending = pending;
+        }
+
+        public SocketChannel getChannel() {
+            return channel;
+        }
+
+        public ByteBuffer getPending() {
+            return pending;
+        }
+    }
+}
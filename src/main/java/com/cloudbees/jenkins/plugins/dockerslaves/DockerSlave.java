@@ -55,28 +55,83 @@ import java.util.Collections;
  */
 public class DockerSlave extends AbstractCloudSlave implements EphemeralNode {
 
+    /**
+     * Agent root directory in remoting container, only overridden by tests which run agents locally.
+     */
+    private static volatile String remoteFS = "/home/jenkins";
+
     private final Job job;
 
-    public DockerSlave(Job job, String labelString) throws Descriptor.FormException, IOException {
+    private final JobBuildsContainersDefinition spec;
+
+    /**
+     * {@link System#nanoTime()} when this slave was requested for a queue item, for {@link ProvisioningMetrics}.
+     */
+    private final transient long provisioningStarted = System.nanoTime();
+
+    /**
+     * Slave created by {@link WithContainersStep} for its body rather than for a queued build, so launch failures
+     * are reported by the step, not recorded on a build.
+     */
+    private boolean forStep;
+
+    public DockerSlave(Job job, String labelString, JobBuildsContainersDefinition spec) throws Descriptor.FormException, IOException {
         // TODO would be better to get notified when the build start, and get the actual build ID. But can't find the API for that
-        super("Container for " +job.getName() + "#" + job.getNextBuildNumber(), "Container slave for building " + job.getFullName(),
-                "/home/jenkins", 1, Mode.EXCLUSIVE, labelString,
+        this("Container for " +job.getName() + "#" + job.getNextBuildNumber(), job, labelString, spec);
+    }
+
+    public DockerSlave(String name, Job job, String labelString, JobBuildsContainersDefinition spec) throws Descriptor.FormException, IOException {
+        super(name, "Container slave for building " + job.getFullName(),
+                remoteFS, 1, Mode.EXCLUSIVE, labelString,
                 new DockerComputerLauncher(),
                 RetentionStrategy.NOOP, // Slave is stopped on completion see DockerComputer.taskCompleted
                 Collections.<NodeProperty<?>>emptyList());
         this.job = job;
+        this.spec = spec;
+    }
+
+    /**
+     * Create slaves with <code>path</code> as root directory, <code>null</code> to restore default.
+     */
+    static void setRemoteFS(String path) {
+        remoteFS = path != null ? path : "/home/jenkins";
     }
 
     public DockerComputer createComputer() {
-        return new DockerComputer(this, job);
+        return new DockerComputer(this, job, spec);
     }
 
     public Job getJob() {
         return job;
     }
 
+    public boolean isForStep() {
+        return forStep;
+    }
+
+    public void setForStep(boolean forStep) {
+        this.forStep = forStep;
+    }
+
+    public long getProvisioningStarted() {
+        return provisioningStarted;
+    }
+
+    /**
+     * Recycle this slave label once it has been removed from Jenkins.
+     */
+    @Override
+    public void terminate() throws InterruptedException, IOException {
+        try {
+            super.terminate();
+        } finally {
+            DockerSlaves.get().getLabelPool().release(getLabelString());
+        }
+    }
+
     @Override
     protected void _terminate(TaskListener listener) throws IOException, InterruptedException {
+        DockerSlaves.get().getProvisioningThrottle().release();
     }
 
     @Override
@@ -30,7 +30,6 @@ import hudson.Plugin;
 import hudson.model.Describable;
 import hudson.model.Descriptor;
 import hudson.model.Job;
-import hudson.model.Label;
 import hudson.model.Queue;
 import hudson.model.TaskListener;
 import hudson.slaves.Cloud;
@@ -42,7 +41,10 @@ import org.kohsuke.stapler.DataBoundSetter;
 import org.kohsuke.stapler.StaplerRequest;
 
 import javax.servlet.ServletException;
+import java.io.File;
 import java.io.IOException;
+import java.util.Collections;
+import java.util.List;
 
 /**
  * {@link Cloud} implementation designed to launch a set of containers (aka "pod") to establish a Jenkins executor.
@@ -68,17 +70,86 @@ public class DockerSlaves extends Plugin implements Describable<DockerSlaves> {
 
     private int containerCap = 10;
 
+    /**
+     * Total size allowed for cache volumes, in megabytes. <code>0</code> means unbounded.
+     */
+    private long cacheVolumesQuota;
+
+    /**
+     * Number of builds per job which remoting containers are preserved, for workspace reuse.
+     * <code>0</code> disables remoting containers garbage collection.
+     */
+    private int remotingContainersRetention = 1;
+
+    private boolean remotingContainersDryRun;
+
+    /**
+     * Provisioning log kept in memory per build before being spooled to disk, in kilobytes.
+     */
+    private int logSpoolMemoryThreshold = 10;
+
+    /**
+     * Provisioning log spooled to disk per build, in megabytes.
+     */
+    private int logSpoolBuildLimit = 10;
+
+    /**
+     * Provisioning log spooled to disk for all builds, in megabytes.
+     */
+    private int logSpoolTotalLimit = 512;
+
+    /**
+     * Only register as many slave nodes as containers cap allows, plus {@link #provisioningLookahead}.
+     */
+    private boolean capacityAwareProvisioning;
+
+    private int provisioningLookahead = 2;
+
+    /**
+     * Prefer swarm hosts which already have the job's workspace and build image.
+     */
+    private boolean localityAwarePlacement;
+
+    /**
+     * Order in which slaves waiting for containers cap are admitted, first come first served if <code>null</code>.
+     */
+    private AdmissionPolicy admissionPolicy;
+
+    /**
+     * Shares of containers cap for folders and jobs.
+     */
+    private List<CapacityQuota> capacityQuotas;
+
     public transient ContainerCountLock containerCount;
 
+    private transient ProvisioningThrottle provisioningThrottle;
+
+    private transient DockerLabelPool labelPool;
+
+    private transient LogSpool logSpool;
+
     public void start() throws IOException {
         load();
         containerCount = new ContainerCountLock(getContainerCap(), getDefaultConstraint());
+        containerCount.setAdmissionPolicy(admissionPolicy);
+        containerCount.setQuotas(capacityQuotas);
+        provisioningThrottle = new ProvisioningThrottle();
+        labelPool = new DockerLabelPool();
+        logSpool = new LogSpool(new File(Jenkins.getInstance().getRootDir(), "docker-slaves/spool"), 0, 0, 0);
+        updateLogSpoolLimits();
+        logSpool.cleanup();
     }
 
     @Override
     public void configure(StaplerRequest req, JSONObject formData) throws IOException, ServletException, Descriptor.FormException {
         req.bindJSON(this, formData);
+        if (!formData.has("capacityQuotas")) {
+            // all quotas have been deleted
+            setCapacityQuotas(null);
+        }
         save();
+        // cap or look-ahead may have been raised
+        provisioningThrottle.drain();
     }
 
     public String getDefaultBuildContainerImageName() {
@@ -100,6 +171,71 @@ public class DockerSlaves extends Plugin implements Describable<DockerSlaves> {
         return containerCap;
     }
 
+    public long getCacheVolumesQuota() {
+        return cacheVolumesQuota;
+    }
+
+    public int getRemotingContainersRetention() {
+        return remotingContainersRetention;
+    }
+
+    public boolean isRemotingContainersDryRun() {
+        return remotingContainersDryRun;
+    }
+
+    public int getLogSpoolMemoryThreshold() {
+        return logSpoolMemoryThreshold;
+    }
+
+    public int getLogSpoolBuildLimit() {
+        return logSpoolBuildLimit;
+    }
+
+    public int getLogSpoolTotalLimit() {
+        return logSpoolTotalLimit;
+    }
+
+    public LogSpool getLogSpool() {
+        return logSpool;
+    }
+
+    public boolean isCapacityAwareProvisioning() {
+        return capacityAwareProvisioning;
+    }
+
+    public boolean isLocalityAwarePlacement() {
+        return localityAwarePlacement;
+    }
+
+    public int getProvisioningLookahead() {
+        return provisioningLookahead;
+    }
+
+    public AdmissionPolicy getAdmissionPolicy() {
+        return admissionPolicy != null ? admissionPolicy : new FifoAdmissionPolicy();
+    }
+
+    public List<CapacityQuota> getCapacityQuotas() {
+        return capacityQuotas != null ? capacityQuotas : Collections.<CapacityQuota>emptyList();
+    }
+
+    /**
+     * Slots currently used by jobs under <code>quota</code>.
+     */
+    public int getQuotaUsage(CapacityQuota quota) {
+        synchronized (containerCount) {
+            return containerCount.getUsage(quota);
+        }
+    }
+
+    public ProvisioningThrottle getProvisioningThrottle() {
+        return provisioningThrottle;
+    }
+
+    public DockerLabelPool getLabelPool() {
+        return labelPool;
+    }
+
     public DockerServerEndpoint getDockerHost() {
         if (dockerHost == null) {
             dockerHost = new DockerServerEndpoint(null, null);
@@ -139,14 +275,82 @@ public class DockerSlaves extends Plugin implements Describable<DockerSlaves> {
 
     }
 
+    @DataBoundSetter
+    public void setCapacityAwareProvisioning(boolean capacityAwareProvisioning) {
+        this.capacityAwareProvisioning = capacityAwareProvisioning;
+    }
+
+    @DataBoundSetter
+    public void setLocalityAwarePlacement(boolean localityAwarePlacement) {
+        this.localityAwarePlacement = localityAwarePlacement;
+    }
+
+    @DataBoundSetter
+    public void setProvisioningLookahead(int provisioningLookahead) {
+        this.provisioningLookahead = provisioningLookahead;
+    }
+
+    @DataBoundSetter
+    public void setAdmissionPolicy(AdmissionPolicy admissionPolicy) {
+        this.admissionPolicy = admissionPolicy;
+        synchronized (containerCount) {
+            containerCount.setAdmissionPolicy(admissionPolicy);
+        }
+    }
+
+    @DataBoundSetter
+    public void setCapacityQuotas(List<CapacityQuota> capacityQuotas) {
+        this.capacityQuotas = capacityQuotas;
+        synchronized (containerCount) {
+            containerCount.setQuotas(capacityQuotas);
+        }
+    }
+
+    @DataBoundSetter
+    public void setCacheVolumesQuota(long cacheVolumesQuota) {
+        this.cacheVolumesQuota = cacheVolumesQuota;
+    }
+
+    @DataBoundSetter
+    public void setRemotingContainersRetention(int remotingContainersRetention) {
+        this.remotingContainersRetention = remotingContainersRetention;
+    }
+
+    @DataBoundSetter
+    public void setRemotingContainersDryRun(boolean remotingContainersDryRun) {
+        this.remotingContainersDryRun = remotingContainersDryRun;
+    }
+
+    @DataBoundSetter
+    public void setLogSpoolMemoryThreshold(int logSpoolMemoryThreshold) {
+        this.logSpoolMemoryThreshold = logSpoolMemoryThreshold;
+        updateLogSpoolLimits();
+    }
+
+    @DataBoundSetter
+    public void setLogSpoolBuildLimit(int logSpoolBuildLimit) {
+        this.logSpoolBuildLimit = logSpoolBuildLimit;
+        updateLogSpoolLimits();
+    }
+
+    @DataBoundSetter
+    public void setLogSpoolTotalLimit(int logSpoolTotalLimit) {
+        this.logSpoolTotalLimit = logSpoolTotalLimit;
+        updateLogSpoolLimits();
+    }
+
+    private void updateLogSpoolLimits() {
+        if (logSpool != null) {
+            logSpool.setLimits(logSpoolMemoryThreshold * 1024, logSpoolBuildLimit * 1024L * 1024L, logSpoolTotalLimit * 1024L * 1024L);
+        }
+    }
+
     public DockerLabelAssignmentAction createLabelAssignmentAction(final Queue.BuildableItem bi) {
-        final String id = Long.toHexString(System.nanoTime());
-        final Label label = Label.get("docker_" + id);
-        return new DockerLabelAssignmentAction(label);
+        return new DockerLabelAssignmentAction(labelPool.acquire());
     }
 
-    public DockerJobContainersProvisioner buildProvisioner(Job job, TaskListener slaveListener) throws IOException, InterruptedException {
-        return new DockerJobContainersProvisioner(job, getDockerHost(), slaveListener, getRemotingContainerImageName(), getScmContainerImageName(), getDefaultConstraint());
+    public DockerJobContainersProvisioner buildProvisioner(Job job, JobBuildsContainersDefinition spec, TaskListener slaveListener) throws IOException, InterruptedException {
+        return new DockerJobContainersProvisioner(job, spec, getDockerHost(), slaveListener, getRemotingContainerImageName(), getScmContainerImageName(), getDefaultConstraint());
     }
 
     public static DockerSlaves get() {
@@ -44,6 +44,11 @@ public class ImageIdContainerDefinition extends ContainerDefinition {
 
     private final boolean forcePull;
 
+    /**
+     * Image has already been checked and pulled, i.e. once for all configurations of a matrix build.
+     */
+    private transient boolean resolved;
+
     @DataBoundConstructor
     public ImageIdContainerDefinition(String image, boolean forcePull) {
         this.image = image;
@@ -54,8 +59,15 @@ public class ImageIdContainerDefinition extends ContainerDefinition {
         return image;
     }
 
+    public void markResolved() {
+        this.resolved = true;
+    }
+
     @Override
     public String getImage(DockerDriver driver, Launcher.ProcStarter procStarter, TaskListener listener, String placement) throws IOException, InterruptedException {
+        if (resolved) {
+            return image;
+        }
 
         boolean pull = forcePull;
         final Launcher launcher = new Launcher.LocalLauncher(listener);
@@ -29,26 +29,37 @@ import hudson.model.AbstractBuild;
 import hudson.model.BuildBadgeAction;
 import hudson.model.Run;
 import hudson.model.TaskListener;
+import jenkins.model.RunAction2;
 
+import java.io.IOException;
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.Collections;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 
-public class JobBuildsContainersContext implements BuildBadgeAction {
+public class JobBuildsContainersContext implements BuildBadgeAction, RunAction2 {
 
-    protected ContainerInstance remotingContainer;
+    protected volatile ContainerInstance remotingContainer;
 
-    protected List<ContainerInstance> buildContainers = new ArrayList<ContainerInstance>();
+    /**
+     * Concurrent collections, as parallel branches sharing a pod launch build containers at the same time.
+     */
+    protected List<ContainerInstance> buildContainers = new CopyOnWriteArrayList<ContainerInstance>();
 
-    protected Map<String, ContainerInstance> sideContainers = new HashMap<String, ContainerInstance>();
+    protected Map<String, ContainerInstance> sideContainers = new ConcurrentHashMap<String, ContainerInstance>();
 
-    protected String constraint;
+    protected volatile String constraint;
 
     /**
      * Flag to indicate the SCM checkout build phase is running.
      */
-    private transient boolean preScm;
+    private transient volatile boolean preScm;
+
+    private transient Run<?, ?> run;
 
     public JobBuildsContainersContext() {
         preScm = true;
@@ -63,7 +74,11 @@ public class JobBuildsContainersContext implements BuildBadgeAction {
     }
 
     public List<ContainerInstance> getBuildContainers() {
-        return buildContainers;
+        return Collections.unmodifiableList(buildContainers);
+    }
+
+    public void addBuildContainer(ContainerInstance container) {
+        buildContainers.add(container);
     }
 
     public String getConstraint()  {
@@ -83,7 +98,85 @@ public class JobBuildsContainersContext implements BuildBadgeAction {
     }
 
     public Map<String, ContainerInstance> getSideContainers() {
-        return sideContainers;
+        return Collections.unmodifiableMap(sideContainers);
+    }
+
+    public void putSideContainer(String name, ContainerInstance container) {
+        sideContainers.put(name, container);
+    }
+
+    /**
+     * Builds recorded before containers were tracked by concurrent collections.
+     */
+    private Object readResolve() {
+        if (!(buildContainers instanceof CopyOnWriteArrayList)) {
+            buildContainers = new CopyOnWriteArrayList<ContainerInstance>(buildContainers != null ? buildContainers : Collections.<ContainerInstance>emptyList());
+        }
+        if (!(sideContainers instanceof ConcurrentHashMap)) {
+            sideContainers = sideContainers != null ? new ConcurrentHashMap<String, ContainerInstance>(sideContainers) : new ConcurrentHashMap<String, ContainerInstance>();
+        }
+        return this;
+    }
+
+    /**
+     * All containers in this pod, remoting container first.
+     */
+    public List<ContainerInstance> getContainers() {
+        List<ContainerInstance> containers = new ArrayList<ContainerInstance>();
+        if (remotingContainer != null) {
+            containers.add(remotingContainer);
+        }
+        containers.addAll(buildContainers);
+        containers.addAll(sideContainers.values());
+        return containers;
+    }
+
+    /**
+     * Earliest lifecycle event of the pod, as epoch time in milliseconds.
+     */
+    public long getTimelineStart() {
+        long start = Long.MAX_VALUE;
+        for (ContainerInstance container : getContainers()) {
+            for (ContainerInstance.TimelineEntry entry : container.getTimeline()) {
+                start = Math.min(start, entry.getTimestamp());
+            }
+        }
+        return start == Long.MAX_VALUE ? 0 : start;
+    }
+
+    /**
+     * Time from earliest to latest lifecycle event of the pod, in milliseconds.
+     */
+    public long getTimelineDuration() {
+        long end = 0;
+        for (ContainerInstance container : getContainers()) {
+            for (ContainerInstance.TimelineEntry entry : container.getTimeline()) {
+                end = Math.max(end, entry.getTimestamp());
+            }
+        }
+        return Math.max(1, end - getTimelineStart());
+    }
+
+    /**
+     * Persist lifecycle events recorded after build completion, i.e. containers removal.
+     */
+    public void save() {
+        if (run == null) return;
+        try {
+            run.save();
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Failed to save containers lifecycle for " + run, e);
+        }
+    }
+
+    @Override
+    public void onAttached(Run<?, ?> r) {
+        this.run = r;
+    }
+
+    @Override
+    public void onLoad(Run<?, ?> r) {
+        this.run = r;
     }
 
     @Override
@@ -100,4 +193,6 @@ public class JobBuildsContainersContext implements BuildBadgeAction {
     public String getUrlName() {
         return "docker";
     }
+
+    private static final Logger LOGGER = Logger.getLogger(JobBuildsContainersContext.class.getName());
 }
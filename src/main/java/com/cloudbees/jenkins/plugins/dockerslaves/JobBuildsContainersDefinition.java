@@ -36,6 +36,7 @@ import java.util.List;
 import net.sf.json.JSONObject;
 
 import org.kohsuke.stapler.DataBoundConstructor;
+import org.kohsuke.stapler.DataBoundSetter;
 import org.kohsuke.stapler.StaplerRequest;
 
 /**
@@ -50,6 +51,21 @@ public class JobBuildsContainersDefinition extends JobProperty {
 
     private final String constraint;
 
+    /**
+     * When set, each build runs in a fresh remoting container which workspace is copied from previous build's one,
+     * so concurrent builds of the same job don't share a <code>/home/jenkins</code> volume.
+     */
+    private boolean forkWorkspace;
+
+    private List<CacheVolumeDefinition> cacheVolumes = Collections.emptyList();
+
+    /**
+     * Build which reserved containers cap for this definition, i.e. the matrix build a configuration is queued by.
+     * Only set on definitions carried by a queue item, not configurable.
+     * @see MatrixBuildProvisioner
+     */
+    private transient String reservationOwner;
+
     @DataBoundConstructor
     public JobBuildsContainersDefinition(ContainerDefinition buildHostImage, List<SideContainerDefinition> sideContainers, String constraint) {
         this.buildHostImage = buildHostImage;
@@ -69,7 +85,10 @@ public class JobBuildsContainersDefinition extends JobProperty {
      * @return a replacement JobBuildsContainersDefinition that went through the constructor
      */
     private Object readResolve() {
-        return new JobBuildsContainersDefinition(buildHostImage, sideContainers, constraint);
+        JobBuildsContainersDefinition definition = new JobBuildsContainersDefinition(buildHostImage, sideContainers, constraint);
+        definition.setForkWorkspace(forkWorkspace);
+        definition.setCacheVolumes(cacheVolumes);
+        return definition;
     }
 
     public ContainerDefinition getBuildHostImage() {
@@ -85,6 +104,32 @@ public class JobBuildsContainersDefinition extends JobProperty {
         return constraint;
     }
 
+    public boolean isForkWorkspace() {
+        return forkWorkspace;
+    }
+
+    @DataBoundSetter
+    public void setForkWorkspace(boolean forkWorkspace) {
+        this.forkWorkspace = forkWorkspace;
+    }
+
+    public List<CacheVolumeDefinition> getCacheVolumes() {
+        return cacheVolumes;
+    }
+
+    @DataBoundSetter
+    public void setCacheVolumes(List<CacheVolumeDefinition> cacheVolumes) {
+        this.cacheVolumes = cacheVolumes == null ? Collections.<CacheVolumeDefinition>emptyList() : cacheVolumes;
+    }
+
+    public String getReservationOwner() {
+        return reservationOwner;
+    }
+
+    public void setReservationOwner(String reservationOwner) {
+        this.reservationOwner = reservationOwner;
+    }
+
     @Extension
     public static class DescriptorImpl extends JobPropertyDescriptor {
 
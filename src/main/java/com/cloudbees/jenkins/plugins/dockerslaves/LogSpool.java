@@ -0,0 +1,215 @@
+/*
+ * The MIT License
+ *
+ *  Copyright (c) 2015, CloudBees, Inc.
+ *
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  of this software and associated documentation files (the "Software"), to deal
+ *  in the Software without restriction, including without limitation the rights
+ *  to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  copies of the Software, and to permit persons to whom the Software is
+ *  furnished to do so, subject to the following conditions:
+ *
+ *  The above copyright notice and this permission notice shall be included in
+ *  all copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ *  THE SOFTWARE.
+ *
+ */
+
+package com.cloudbees.jenkins.plugins.dockerslaves;
+
+import hudson.Util;
+import org.apache.commons.io.IOUtils;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Manage log produced while a build is being provisioned, before it can be written to the build log. Small logs
+ * are kept in memory, larger ones are spooled to a single directory, and both per-build and total disk usage are
+ * capped so a provisioning storm can't exhaust master heap or disk.
+ */
+public class LogSpool {
+
+    private final File directory;
+
+    private volatile int memoryThreshold;
+
+    private volatile long buildLimit;
+
+    private volatile long totalLimit;
+
+    /**
+     * Bytes currently spooled on disk, all builds included.
+     */
+    private final AtomicLong total = new AtomicLong();
+
+    public LogSpool(File directory, int memoryThreshold, long buildLimit, long totalLimit) {
+        this.directory = directory;
+        setLimits(memoryThreshold, buildLimit, totalLimit);
+    }
+
+    public void setLimits(int memoryThreshold, long buildLimit, long totalLimit) {
+        this.memoryThreshold = memoryThreshold;
+        this.buildLimit = buildLimit;
+        this.totalLimit = totalLimit;
+    }
+
+    /**
+     * Remove spool files left behind by a previous run.
+     */
+    public void cleanup() {
+        try {
+            Util.deleteContentsRecursive(directory);
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Failed to cleanup log spool directory " + directory, e);
+        }
+        total.set(0);
+    }
+
+    public long getTotal() {
+        return total.get();
+    }
+
+    public Spool create(String name) {
+        return new Spool(name);
+    }
+
+    /**
+     * Log for a single build. Content is kept in memory up to {@link #memoryThreshold}, then written to a file
+     * in spool directory. Data exceeding limits is dropped, and a marker is written once.
+     */
+    public class Spool extends OutputStream {
+
+        private final String name;
+
+        private ByteArrayOutputStream memory = new ByteArrayOutputStream();
+
+        private File file;
+
+        private OutputStream out;
+
+        private long size;
+
+        /**
+         * Bytes this spool added to {@link LogSpool#total}.
+         */
+        private long accounted;
+
+        private boolean truncated;
+
+        Spool(String name) {
+            this.name = name;
+        }
+
+        @Override
+        public synchronized void write(int b) throws IOException {
+            write(new byte[] {(byte) b}, 0, 1);
+        }
+
+        @Override
+        public synchronized void write(byte[] b, int off, int len) throws IOException {
+            if (truncated) return;
+
+            if (memory != null && memory.size() + len <= memoryThreshold) {
+                memory.write(b, off, len);
+                size += len;
+                return;
+            }
+
+            if (size + len > buildLimit) {
+                truncate();
+                return;
+            }
+            // memory content is accounted on disk usage when spilled
+            long pending = memory != null ? memory.size() + len : len;
+            if (total.addAndGet(pending) > totalLimit) {
+                total.addAndGet(-pending);
+                truncate();
+                return;
+            }
+            accounted += pending;
+
+            if (memory != null) {
+                spill();
+            }
+            out.write(b, off, len);
+            size += len;
+        }
+
+        private void spill() throws IOException {
+            directory.mkdirs();
+            file = File.createTempFile(Util.getDigestOf(name).substring(0, 8), ".log", directory);
+            out = new BufferedOutputStream(new FileOutputStream(file));
+            memory.writeTo(out);
+            memory = null;
+        }
+
+        private void truncate() throws IOException {
+            truncated = true;
+            byte[] marker = ("\n[log truncated after " + size + " bytes]\n").getBytes(Charset.forName("UTF-8"));
+            if (out != null) {
+                out.write(marker);
+            } else {
+                memory.write(marker);
+            }
+        }
+
+        @Override
+        public synchronized void flush() throws IOException {
+            if (out != null) out.flush();
+        }
+
+        @Override
+        public synchronized void close() throws IOException {
+            if (out != null) out.close();
+        }
+
+        public synchronized void writeTo(OutputStream os) throws IOException {
+            if (memory != null) {
+                memory.writeTo(os);
+            } else if (file != null) {
+                InputStream in = new FileInputStream(file);
+                try {
+                    IOUtils.copy(in, os);
+                } finally {
+                    IOUtils.closeQuietly(in);
+                }
+            }
+        }
+
+        /**
+         * Release spool storage once content has been claimed (or isn't needed anymore).
+         */
+        public synchronized void delete() {
+            IOUtils.closeQuietly(out);
+            if (file != null) {
+                file.delete();
+                file = null;
+            }
+            total.addAndGet(-accounted);
+            accounted = 0;
+            memory = null;
+            truncated = true;
+        }
+    }
+
+    private static final Logger LOGGER = Logger.getLogger(LogSpool.class.getName());
+}
@@ -0,0 +1,189 @@
+/*
+ * The MIT License
+ *
+ *  Copyright (c) 2015, CloudBees, Inc.
+ *
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  of this software and associated documentation files (the "Software"), to deal
+ *  in the Software without restriction, including without limitation the rights
+ *  to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  copies of the Software, and to permit persons to whom the Software is
+ *  furnished to do so, subject to the following conditions:
+ *
+ *  The above copyright notice and this permission notice shall be included in
+ *  all copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ *  THE SOFTWARE.
+ *
+ */
+
+package com.cloudbees.jenkins.plugins.dockerslaves;
+
+import hudson.Extension;
+import hudson.matrix.MatrixBuild;
+import hudson.matrix.MatrixConfiguration;
+import hudson.matrix.MatrixProject;
+import hudson.model.Cause;
+import hudson.model.Computer;
+import hudson.model.Label;
+import hudson.model.Queue;
+import hudson.model.TaskListener;
+import hudson.model.listeners.RunListener;
+import org.apache.commons.lang.StringUtils;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+
+/**
+ * Prepare all configurations of a matrix build at once when it starts, before configurations are queued: distinct
+ * images are checked and pulled once, in parallel, and containers cap is reserved for the whole set, so the matrix
+ * doesn't trickle through the cap one configuration at a time.
+ *
+ * @see MatrixProvisionQueueListener
+ */
+@Extension(optional = true)
+public class MatrixBuildProvisioner extends RunListener<MatrixBuild> {
+
+    /**
+     * Images resolved for running matrix builds, as <code>image + '\n' + constraint</code>, by build ID. Also tells
+     * which builds may hold containers cap reservations, to be released on completion.
+     */
+    private static final Map<String, Set<String>> RESOLVED = new ConcurrentHashMap<String, Set<String>>();
+
+    public MatrixBuildProvisioner() {
+        super(MatrixBuild.class);
+    }
+
+    /**
+     * Image has been resolved on hosts matching <code>constraint</code> for the running matrix build with ID
+     * <code>owner</code>. Blank constraint stands for the default one.
+     */
+    public static boolean isResolved(String owner, String image, String constraint) {
+        Set<String> images = RESOLVED.get(owner);
+        if (StringUtils.isBlank(constraint)) {
+            constraint = DockerSlaves.get().getDefaultConstraint();
+        }
+        return images != null && images.contains(image + '\n' + constraint);
+    }
+
+    /**
+     * ID of the <code>project</code> build which queued a configuration, as owner of the containers cap it reserved.
+     * @return build ID, or <code>null</code> if item wasn't queued by a <code>project</code> build
+     */
+    public static String getReservationOwner(Queue.Item item, MatrixProject project) {
+        for (Cause cause : item.getCauses()) {
+            if (cause instanceof Cause.UpstreamCause) {
+                final Cause.UpstreamCause upstream = (Cause.UpstreamCause) cause;
+                if (project.getFullName().equals(upstream.getUpstreamProject())) {
+                    return upstream.getUpstreamProject() + '#' + upstream.getUpstreamBuild();
+                }
+            }
+        }
+        return null;
+    }
+
+    @Override
+    public void onStarted(MatrixBuild build, TaskListener listener) {
+        final MatrixProject project = build.getParent();
+        final MatrixProjectContainersDefinition def = project.getProperty(MatrixProjectContainersDefinition.class);
+        if (def == null) return;
+
+        final DockerSlaves plugin = DockerSlaves.get();
+
+        // image + constraint -> image definition, and constraint -> configurations count
+        final Map<String, ImageIdContainerDefinition> images = new LinkedHashMap<String, ImageIdContainerDefinition>();
+        final Map<String, String> constraints = new HashMap<String, String>();
+        final Map<String, Integer> configurations = new LinkedHashMap<String, Integer>();
+        for (MatrixConfiguration configuration : project.getActiveConfigurations()) {
+            final Label label = configuration.getAssignedLabel();
+            if (label == null) continue;
+            final ImageIdContainerDefinition image = def.getBuildHostImage(label.toString());
+            if (image == null) continue;
+
+            String constraint = def.getConstraint(label.toString());
+            if (StringUtils.isBlank(constraint)) {
+                constraint = plugin.getDefaultConstraint();
+            }
+            final String key = image.getImage() + '\n' + constraint;
+            images.put(key, image);
+            constraints.put(key, constraint);
+            final Integer count = configurations.get(constraint);
+            configurations.put(constraint, count != null ? count + 1 : 1);
+        }
+        if (images.isEmpty()) return;
+
+        final String owner = build.getExternalizableId();
+        final Set<String> resolved = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+        try {
+            final ContainerCountLock containerCount = plugin.containerCount;
+            synchronized (containerCount) {
+                for (Map.Entry<String, Integer> entry : configurations.entrySet()) {
+                    int reserved = containerCount.reserve(owner, project.getFullName(), entry.getKey(), entry.getValue());
+                    listener.getLogger().println("Reserved " + reserved + "/" + entry.getValue() + " container slots for matrix configurations"
+                            + (StringUtils.isNotBlank(entry.getKey()) ? " with constraint " + entry.getKey() : ""));
+                }
+            }
+
+            final DockerDriver driver = new DockerDriver(plugin.getDockerHost(), project);
+            try {
+                // image + constraint -> pending image resolution
+                Map<String, Future<String>> futures = new LinkedHashMap<String, Future<String>>();
+                for (final Map.Entry<String, ImageIdContainerDefinition> image : images.entrySet()) {
+                    final String constraint = constraints.get(image.getKey());
+                    futures.put(image.getKey(), Computer.threadPoolForRemoting.submit(new Callable<String>() {
+                        @Override
+                        public String call() throws Exception {
+                            return image.getValue().getImage(driver, null, listener, constraint);
+                        }
+                    }));
+                }
+                for (Map.Entry<String, Future<String>> future : futures.entrySet()) {
+                    try {
+                        resolved.add(future.getValue().get() + '\n' + constraints.get(future.getKey()));
+                    } catch (ExecutionException e) {
+                        // configuration will try again on its own
+                        e.getCause().printStackTrace(listener.error("Failed to resolve image for matrix configurations"));
+                    }
+                }
+            } finally {
+                driver.close();
+            }
+        } catch (IOException e) {
+            e.printStackTrace(listener.error("Failed to resolve images for matrix configurations"));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            // whatever happened, reservations are released on completion
+            RESOLVED.put(owner, resolved);
+        }
+    }
+
+    @Override
+    public void onCompleted(MatrixBuild build, TaskListener listener) {
+        final String owner = build.getExternalizableId();
+        if (RESOLVED.remove(owner) == null) return;
+
+        final ContainerCountLock containerCount = DockerSlaves.get().containerCount;
+        int released;
+        synchronized (containerCount) {
+            released = containerCount.releaseReservations(owner);
+        }
+        if (released > 0) {
+            listener.getLogger().println("Released " + released + " unused container slots reserved for matrix configurations");
+        }
+    }
+}
@@ -53,8 +53,13 @@ public class MatrixProjectContainersDefinition extends JobProperty {
     }
 
     public ImageIdContainerDefinition getBuildHostImage(Queue.Item bi) {
-        String label = bi.getAssignedLabel().toString();
+        return getBuildHostImage(bi.getAssignedLabel().toString());
+    }
 
+    /**
+     * @param label matrix configuration label expression, i.e. <code>docker:maven:3\constraint:linux</code>
+     */
+    public ImageIdContainerDefinition getBuildHostImage(String label) {
         for(String subLabel: StringUtils.split(label, '\\')) {
             if (subLabel.startsWith(ImagePrefix)) {
                 return new ImageIdContainerDefinition(subLabel.substring(ImagePrefix.length()), forcePull);
@@ -65,8 +70,10 @@ public class MatrixProjectContainersDefinition extends JobProperty {
     }
 
     public String getConstraint(Queue.Item bi) {
-        String label = bi.getAssignedLabel().toString();
+        return getConstraint(bi.getAssignedLabel().toString());
+    }
 
+    public String getConstraint(String label) {
         for(String subLabel: StringUtils.split(label, '\\')) {
             if (subLabel.startsWith(ConstraintPrefix)) {
                 return subLabel.substring(ConstraintPrefix.length());
@@ -32,7 +32,6 @@ import hudson.model.*;
 import hudson.model.labels.LabelAssignmentAction;
 import hudson.model.queue.QueueListener;
 
-import java.io.IOException;
 import java.util.List;
 import java.util.logging.Level;
 import java.util.logging.Logger;
@@ -62,23 +61,22 @@ public class MatrixProvisionQueueListener extends QueueListener {
                     return;
                 }
 
-                LOGGER.info("Creating new definition for " + job.toString() + "#" + job.getNextBuildNumber() + " with " + imageId.getImage());
+                final String reservationOwner = MatrixBuildProvisioner.getReservationOwner(bi, job.getParent());
+                if (reservationOwner != null
+                        && MatrixBuildProvisioner.isResolved(reservationOwner, imageId.getImage(), def.getConstraint(bi))) {
+                    imageId.markResolved();
+                }
 
-                try {
-                    JobProperty p;
-                    do {
-                        p = job.removeProperty(JobBuildsContainersDefinition.class);
-                    } while (p != null);
+                LOGGER.info("Creating new definition for " + job.toString() + "#" + job.getNextBuildNumber() + " with " + imageId.getImage());
 
-                    job.addProperty(new JobBuildsContainersDefinition(
-                            imageId,
-                            null,
-                            def.getConstraint(bi)
-                    ));
-                } catch (IOException e) {
-                    e.printStackTrace();
-                    return;
-                }
+                // carried by the queue item, so configuration isn't saved for every build
+                JobBuildsContainersDefinition definition = new JobBuildsContainersDefinition(
+                        imageId,
+                        null,
+                        def.getConstraint(bi)
+                );
+                definition.setReservationOwner(reservationOwner);
+                bi.replaceAction(new ContainersDefinitionAction(definition));
 
                 List<LabelAssignmentAction> assignmentActions = bi.getActions(LabelAssignmentAction.class);
                 List<Action> current = bi.getActions();
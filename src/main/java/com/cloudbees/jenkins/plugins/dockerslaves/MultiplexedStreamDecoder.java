@@ -0,0 +1,87 @@
+/*
+ * The MIT License
+ *
+ *  Copyright (c) 2015, CloudBees, Inc.
+ *
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  of this software and associated documentation files (the "Software"), to deal
+ *  in the Software without restriction, including without limitation the rights
+ *  to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  copies of the Software, and to permit persons to whom the Software is
+ *  furnished to do so, subject to the following conditions:
+ *
+ *  The above copyright notice and this permission notice shall be included in
+ *  all copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ *  THE SOFTWARE.
+ *
+ */
+
+package com.cloudbees.jenkins.plugins.dockerslaves;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * Demultiplex the stdout/stderr stream docker sends on attach for a container without TTY. Each frame has an 8 bytes
+ * header: stream type (1 = stdout, 2 = stderr), 3 padding bytes, then payload size as big endian unsigned int.
+ * <p>
+ * Decoder is stateful, so frames can be split on arbitrary buffer boundaries. Payload is written to sinks straight
+ * from the buffer backing array, without intermediate copy.
+ */
+public class MultiplexedStreamDecoder {
+
+    private final OutputStream stdout;
+
+    private final OutputStream stderr;
+
+    private final ByteBuffer header = ByteBuffer.allocate(8);
+
+    /**
+     * Payload bytes left in current frame.
+     */
+    private long remaining;
+
+    private OutputStream current;
+
+    public MultiplexedStreamDecoder(OutputStream stdout, OutputStream stderr) {
+        this.stdout = stdout;
+        this.stderr = stderr;
+    }
+
+    /**
+     * Consume all remaining bytes from <code>buffer</code>, which must be backed by an array.
+     */
+    public void decode(ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (remaining == 0) {
+                while (header.hasRemaining() && buffer.hasRemaining()) {
+                    header.put(buffer.get());
+                }
+                if (header.hasRemaining()) return;
+
+                current = header.get(0) == 2 ? stderr : stdout;
+                remaining = header.getInt(4) & 0xFFFFFFFFL;
+                header.clear();
+                continue;
+            }
+
+            int n = (int) Math.min(remaining, buffer.remaining());
+            current.write(buffer.array(), buffer.arrayOffset() + buffer.position(), n);
+            buffer.position(buffer.position() + n);
+            remaining -= n;
+        }
+    }
+
+    public void flush() throws IOException {
+        stdout.flush();
+        if (stderr != stdout) stderr.flush();
+    }
+}
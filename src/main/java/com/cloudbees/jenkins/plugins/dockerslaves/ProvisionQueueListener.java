@@ -28,17 +28,13 @@ package com.cloudbees.jenkins.plugins.dockerslaves;
 import hudson.Extension;
 import hudson.model.AbstractProject;
 import hudson.model.Action;
-import hudson.model.Descriptor;
 import hudson.model.Job;
-import hudson.model.Node;
 import hudson.model.Queue;
 import hudson.model.labels.LabelAssignmentAction;
 import hudson.model.queue.QueueListener;
 import hudson.slaves.Cloud;
 import hudson.slaves.NodeProvisioner;
-import jenkins.model.Jenkins;
 
-import java.io.IOException;
 import java.util.List;
 import java.util.logging.Logger;
 
@@ -56,24 +52,36 @@ public class ProvisionQueueListener extends QueueListener {
     public void onEnterBuildable(final Queue.BuildableItem bi) {
         if (bi.task instanceof AbstractProject) {
             AbstractProject job = (AbstractProject) bi.task;
-            JobBuildsContainersDefinition def = (JobBuildsContainersDefinition) job.getProperty(JobBuildsContainersDefinition.class);
+            JobBuildsContainersDefinition def = ContainersDefinitionAction.getDefinition(job, bi);
             if (def == null) return;
 
-            try {
-                final DockerSlaves cloud = DockerSlaves.get();
+            final DockerSlaves cloud = DockerSlaves.get();
 
-                LOGGER.info("Creating a Container slave to host " + job.toString() + "#" + job.getNextBuildNumber());
-                DockerLabelAssignmentAction action = cloud.createLabelAssignmentAction(bi);
+            // item may enter buildable state again after being blocked, keep the label it has been assigned
+            DockerLabelAssignmentAction action = bi.getAction(DockerLabelAssignmentAction.class);
+            if (action == null) {
+                action = cloud.createLabelAssignmentAction(bi);
                 bi.addAction(action);
+            } else if (!action.getLabel().getNodes().isEmpty()) {
+                // slave has already been created for it
+                return;
+            }
 
-                // Immediately create a slave for this item
-                // Real provisioning will happen later
-                final Node node = new DockerSlave(job, action.getLabel().toString());
-                Jenkins.getInstance().addNode(node);
-            } catch (IOException e) {
-                e.printStackTrace();
-            } catch (Descriptor.FormException e) {
-                e.printStackTrace();
+            LOGGER.info("Creating a Container slave to host " + job.toString() + "#" + job.getNextBuildNumber());
+            // Immediately create a slave for this item, unless containers cap is reached
+            // Real provisioning will happen later
+            cloud.getProvisioningThrottle().provision(bi);
+        }
+    }
+
+    @Override
+    public void onLeft(Queue.LeftItem li) {
+        final DockerSlaves cloud = DockerSlaves.get();
+        if (cloud.getProvisioningThrottle().cancel(li)) {
+            // no slave has been created for this item, so its label can be recycled right now
+            DockerLabelAssignmentAction action = li.getAction(DockerLabelAssignmentAction.class);
+            if (action != null) {
+                cloud.getLabelPool().release(action.getLabel().getName());
             }
         }
     }
@@ -0,0 +1,289 @@
+/*
+ * The MIT License
+ *
+ *  Copyright (c) 2015, CloudBees, Inc.
+ *
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  of this software and associated documentation files (the "Software"), to deal
+ *  in the Software without restriction, including without limitation the rights
+ *  to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  copies of the Software, and to permit persons to whom the Software is
+ *  furnished to do so, subject to the following conditions:
+ *
+ *  The above copyright notice and this permission notice shall be included in
+ *  all copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ *  THE SOFTWARE.
+ *
+ */
+
+package com.cloudbees.jenkins.plugins.dockerslaves;
+
+import org.jenkinsci.plugins.docker.commons.credentials.DockerServerEndpoint;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.StandardMBean;
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Latency histograms for container provisioning, per phase and per docker endpoint.
+ * <p>
+ * Recording is lock-free: a sample only costs a few atomic increments in a log-linear bucket array (4 buckets per
+ * power of two, so percentiles are reported within ~20%). Histograms are exposed through JMX and
+ * {@link ProvisioningMetricsAction}.
+ */
+public class ProvisioningMetrics {
+
+    /** From item entering the buildable queue to slave launch. */
+    public static final String QUEUE_TO_LAUNCH = "queue-to-launch";
+
+    /** Whole slave launch, from {@link DockerComputerLauncher} to remoting channel established. */
+    public static final String LAUNCH = "launch";
+
+    /** From item entering the buildable queue to remoting channel established. */
+    public static final String PROVISIONING = "provisioning";
+
+    public static final String PREPARE_REMOTING_CONTAINER = "prepare-remoting-container";
+
+    /** Time spent waiting for container cap. */
+    public static final String CAP_WAIT = "cap-wait";
+
+    public static final String REMOTING_CONNECT = "remoting-connect";
+
+    /** From build container being killed, on abort or timeout, to its container cap slot released. */
+    public static final String ABORT_TO_FREE = "abort-to-free";
+
+    /** Prefix for docker operations, i.e. <code>docker create</code>. */
+    public static final String DOCKER = "docker ";
+
+    /** Prefix for time spent by docker operations in {@link DockerEndpointScheduler}, i.e. <code>docker-wait create</code>. */
+    public static final String DOCKER_WAIT = "docker-wait ";
+
+    private static final ProvisioningMetrics INSTANCE = new ProvisioningMetrics();
+
+    private final ConcurrentMap<Key, Histogram> histograms = new ConcurrentHashMap<Key, Histogram>();
+
+    public static ProvisioningMetrics get() {
+        return INSTANCE;
+    }
+
+    public static String endpoint(DockerServerEndpoint dockerHost) {
+        return dockerHost == null || dockerHost.getUri() == null ? "default" : dockerHost.getUri();
+    }
+
+    /**
+     * Record time elapsed since <code>startNanos</code>, as returned by {@link System#nanoTime()}.
+     */
+    public void record(String phase, String endpoint, long startNanos) {
+        histogram(phase, endpoint).record(TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - startNanos));
+    }
+
+    public Histogram histogram(String phase, String endpoint) {
+        Key key = new Key(phase, endpoint);
+        Histogram histogram = histograms.get(key);
+        if (histogram == null) {
+            histogram = new Histogram();
+            Histogram existing = histograms.putIfAbsent(key, histogram);
+            if (existing != null) return existing;
+            register(key, histogram);
+        }
+        return histogram;
+    }
+
+    /**
+     * Snapshot of histograms, sorted by phase then endpoint.
+     */
+    public Map<Key, Histogram> getHistograms() {
+        return new TreeMap<Key, Histogram>(histograms);
+    }
+
+    private static void register(Key key, Histogram histogram) {
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = new ObjectName(ProvisioningMetrics.class.getPackage().getName()
+                    + ":type=ProvisioningMetrics,phase=" + ObjectName.quote(key.phase)
+                    + ",endpoint=" + ObjectName.quote(key.endpoint));
+            server.registerMBean(new StandardMBean(histogram, HistogramMBean.class), name);
+        } catch (JMException e) {
+            LOGGER.log(Level.FINE, "Failed to register provisioning metrics MBean for " + key, e);
+        }
+    }
+
+    public static final class Key implements Comparable<Key> {
+
+        private final String phase;
+
+        private final String endpoint;
+
+        Key(String phase, String endpoint) {
+            this.phase = phase;
+            this.endpoint = endpoint;
+        }
+
+        public String getPhase() {
+            return phase;
+        }
+
+        public String getEndpoint() {
+            return endpoint;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) return false;
+            Key that = (Key) o;
+            return phase.equals(that.phase) && endpoint.equals(that.endpoint);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * phase.hashCode() + endpoint.hashCode();
+        }
+
+        @Override
+        public int compareTo(Key o) {
+            int c = phase.compareTo(o.phase);
+            return c != 0 ? c : endpoint.compareTo(o.endpoint);
+        }
+
+        @Override
+        public String toString() {
+            return phase + " on " + endpoint;
+        }
+    }
+
+    /**
+     * JMX view of a {@link Histogram}, durations in milliseconds.
+     */
+    public interface HistogramMBean {
+
+        long getCount();
+
+        double getMean();
+
+        double getP50();
+
+        double getP90();
+
+        double getP99();
+
+        double getMax();
+    }
+
+    public static final class Histogram implements HistogramMBean {
+
+        private static final int SUB_BUCKETS = 4;
+
+        private static final int BUCKETS = 64 * SUB_BUCKETS;
+
+        private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+
+        private final AtomicLong count = new AtomicLong();
+
+        /** in microseconds */
+        private final AtomicLong sum = new AtomicLong();
+
+        /** in microseconds */
+        private final AtomicLong max = new AtomicLong();
+
+        public void record(long micros) {
+            if (micros < 0) micros = 0;
+            buckets.incrementAndGet(bucket(micros));
+            count.incrementAndGet();
+            sum.addAndGet(micros);
+            long m;
+            while (micros > (m = max.get()) && !max.compareAndSet(m, micros)) {
+                // retry
+            }
+        }
+
+        static int bucket(long value) {
+            if (value < SUB_BUCKETS) return (int) value;
+            int exp = 63 - Long.numberOfLeadingZeros(value);
+            int sub = (int) (value >>> (exp - 2)) & (SUB_BUCKETS - 1);
+            return (exp - 1) * SUB_BUCKETS + sub;
+        }
+
+        /**
+         * Lowest value stored in bucket.
+         */
+        static long lowerBound(int bucket) {
+            if (bucket < SUB_BUCKETS) return bucket;
+            int exp = bucket / SUB_BUCKETS + 1;
+            int sub = bucket % SUB_BUCKETS;
+            return (long) (SUB_BUCKETS + sub) << (exp - 2);
+        }
+
+        /**
+         * @return value at quantile <code>q</code>, in microseconds, as the upper bound of matching bucket.
+         */
+        public long quantile(double q) {
+            long total = count.get();
+            if (total == 0) return 0;
+            long rank = (long) Math.ceil(q * total);
+            long seen = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                seen += buckets.get(i);
+                if (seen >= rank) {
+                    return Math.min(i + 1 < BUCKETS ? lowerBound(i + 1) - 1 : Long.MAX_VALUE, max.get());
+                }
+            }
+            return max.get();
+        }
+
+        @Override
+        public long getCount() {
+            return count.get();
+        }
+
+        /** in microseconds */
+        public long getSum() {
+            return sum.get();
+        }
+
+        @Override
+        public double getMean() {
+            long c = count.get();
+            return c == 0 ? 0 : sum.get() / 1000.0 / c;
+        }
+
+        @Override
+        public double getP50() {
+            return quantile(0.5) / 1000.0;
+        }
+
+        @Override
+        public double getP90() {
+            return quantile(0.9) / 1000.0;
+        }
+
+        @Override
+        public double getP99() {
+            return quantile(0.99) / 1000.0;
+        }
+
+        @Override
+        public double getMax() {
+            return max.get() / 1000.0;
+        }
+    }
+
+    private static final Logger LOGGER = Logger.getLogger(ProvisioningMetrics.class.getName());
+}
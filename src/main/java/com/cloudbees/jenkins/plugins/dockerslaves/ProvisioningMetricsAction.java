@@ -0,0 +1,111 @@
+/*
+ * The MIT License
+ *
+ *  Copyright (c) 2015, CloudBees, Inc.
+ *
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  of this software and associated documentation files (the "Software"), to deal
+ *  in the Software without restriction, including without limitation the rights
+ *  to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  copies of the Software, and to permit persons to whom the Software is
+ *  furnished to do so, subject to the following conditions:
+ *
+ *  The above copyright notice and this permission notice shall be included in
+ *  all copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ *  THE SOFTWARE.
+ *
+ */
+
+package com.cloudbees.jenkins.plugins.dockerslaves;
+
+import hudson.Extension;
+import hudson.model.RootAction;
+import jenkins.model.Jenkins;
+import org.kohsuke.stapler.StaplerRequest;
+import org.kohsuke.stapler.StaplerResponse;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.Map;
+
+/**
+ * Expose {@link ProvisioningMetrics} as a Prometheus compatible text endpoint, at
+ * <code>/docker-slaves-metrics/</code>. Durations are in seconds.
+ */
+@Extension
+public class ProvisioningMetricsAction implements RootAction {
+
+    private static final double[] QUANTILES = { 0.5, 0.9, 0.99 };
+
+    @Override
+    public String getIconFileName() {
+        return null;
+    }
+
+    @Override
+    public String getDisplayName() {
+        return "Docker slaves provisioning metrics";
+    }
+
+    @Override
+    public String getUrlName() {
+        return "docker-slaves-metrics";
+    }
+
+    public void doIndex(StaplerRequest req, StaplerResponse rsp) throws IOException {
+        Jenkins.getInstance().checkPermission(Jenkins.ADMINISTER);
+
+        rsp.setContentType("text/plain; version=0.0.4; charset=UTF-8");
+        PrintWriter w = rsp.getWriter();
+        w.println("# TYPE docker_slaves_provisioning_seconds summary");
+        for (Map.Entry<ProvisioningMetrics.Key, ProvisioningMetrics.Histogram> entry : ProvisioningMetrics.get().getHistograms().entrySet()) {
+            ProvisioningMetrics.Histogram histogram = entry.getValue();
+            String labels = "phase=\"" + escape(entry.getKey().getPhase()) + "\",endpoint=\"" + escape(entry.getKey().getEndpoint()) + "\"";
+            for (double q : QUANTILES) {
+                w.println("docker_slaves_provisioning_seconds{" + labels + ",quantile=\"" + q + "\"} " + histogram.quantile(q) / 1e6);
+            }
+            w.println("docker_slaves_provisioning_seconds_sum{" + labels + "} " + histogram.getSum() / 1e6);
+            w.println("docker_slaves_provisioning_seconds_count{" + labels + "} " + histogram.getCount());
+        }
+
+        final ContainerCountLock containerCount = DockerSlaves.get().containerCount;
+        int leases, reclaimed;
+        synchronized (containerCount) {
+            leases = containerCount.getLeases().size();
+            reclaimed = containerCount.getReclaimed();
+        }
+        w.println("# TYPE docker_slaves_capacity_leases gauge");
+        w.println("docker_slaves_capacity_leases " + leases);
+        w.println("# TYPE docker_slaves_capacity_leases_reclaimed_total counter");
+        w.println("docker_slaves_capacity_leases_reclaimed_total " + reclaimed);
+
+        w.println("# TYPE docker_slaves_docker_requests_queued gauge");
+        for (Map.Entry<String, DockerEndpointScheduler> entry : DockerEndpointScheduler.getSchedulers().entrySet()) {
+            for (DockerEndpointScheduler.OpClass op : DockerEndpointScheduler.OpClass.values()) {
+                w.println("docker_slaves_docker_requests_queued{endpoint=\"" + escape(entry.getKey()) + "\",class=\""
+                        + op.name().toLowerCase() + "\"} " + entry.getValue().getQueueDepth(op));
+            }
+        }
+        w.println("# TYPE docker_slaves_docker_requests_running gauge");
+        for (Map.Entry<String, DockerEndpointScheduler> entry : DockerEndpointScheduler.getSchedulers().entrySet()) {
+            w.println("docker_slaves_docker_requests_running{endpoint=\"" + escape(entry.getKey()) + "\"} " + entry.getValue().getRunning());
+        }
+        w.println("# TYPE docker_slaves_endpoint_circuit_open gauge");
+        for (Map.Entry<String, DockerEndpointHealth> entry : DockerEndpointHealth.getBreakers().entrySet()) {
+            w.println("docker_slaves_endpoint_circuit_open{endpoint=\"" + escape(entry.getKey()) + "\"} "
+                    + (entry.getValue().getState() == DockerEndpointHealth.State.CLOSED ? 0 : 1));
+        }
+        w.flush();
+    }
+
+    private static String escape(String value) {
+        return value.replace("\\", "\\\\").replace("\"", "\\\"");
+    }
+}
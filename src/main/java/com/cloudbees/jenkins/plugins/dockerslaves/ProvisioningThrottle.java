@@ -0,0 +1,183 @@
+/*
+ * The MIT License
+ *
+ *  Copyright (c) 2015, CloudBees, Inc.
+ *
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  of this software and associated documentation files (the "Software"), to deal
+ *  in the Software without restriction, including without limitation the rights
+ *  to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  copies of the Software, and to permit persons to whom the Software is
+ *  furnished to do so, subject to the following conditions:
+ *
+ *  The above copyright notice and this permission notice shall be included in
+ *  all copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ *  THE SOFTWARE.
+ *
+ */
+
+package com.cloudbees.jenkins.plugins.dockerslaves;
+
+import hudson.model.AbstractProject;
+import hudson.model.Descriptor;
+import hudson.model.Job;
+import hudson.model.Queue;
+import jenkins.model.Jenkins;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Bound the number of {@link DockerSlave} nodes registered with Jenkins, when
+ * {@link DockerSlaves#isCapacityAwareProvisioning()} is set. A burst of queued items then doesn't create thousands
+ * of nodes and launcher threads waiting for containers cap: items beyond cap and look-ahead get their label
+ * assigned, but their node is only created as slaves terminate.
+ * <p>
+ * As only a few nodes wait for containers cap in {@link ContainerCountLock}, pending items are ordered by the
+ * {@link AdmissionPolicy} too, so it decides which builds get a node first, not just which nodes get a slot first.
+ * {@link CapacityQuota}s are only enforced once nodes wait for a slot.
+ */
+public class ProvisioningThrottle {
+
+    /**
+     * Registered {@link DockerSlave} nodes.
+     */
+    private int nodes;
+
+    /**
+     * Buildable items waiting for a node, by item id, in queue order.
+     */
+    private final Map<Long, ContainerCountLock.Waiter> pending = new LinkedHashMap<Long, ContainerCountLock.Waiter>();
+
+    /**
+     * Create node for <code>item</code>, or keep it pending if there's no capacity for it.
+     */
+    public void provision(Queue.BuildableItem item) {
+        synchronized (this) {
+            if (isThrottled()) {
+                final String job = item.task instanceof Job ? ((Job) item.task).getFullName() : null;
+                pending.put(item.getId(), new ContainerCountLock.Waiter(item.task.getFullDisplayName(), job, null,
+                        item.task.getEstimatedDuration(), item.getInQueueSince()));
+                LOGGER.log(Level.FINE, "Containers cap reached, postponing slave creation for {0}", item);
+                return;
+            }
+            // item may be pending from a previous pass, as it went blocked and buildable again
+            pending.remove(item.getId());
+            nodes++;
+        }
+        createNode(item);
+    }
+
+    /**
+     * A {@link DockerSlave} has been created outside of the queue, i.e. by {@link WithContainersStep}.
+     */
+    public synchronized void register() {
+        nodes++;
+    }
+
+    /**
+     * A {@link DockerSlave} has been terminated, create nodes for pending items as capacity allows.
+     */
+    public void release() {
+        synchronized (this) {
+            nodes = Math.max(nodes - 1, 0);
+        }
+        drain();
+    }
+
+    /**
+     * Item left the queue.
+     * @return <code>true</code> if item was still pending, so no node has been created for it.
+     */
+    public synchronized boolean cancel(Queue.Item item) {
+        return pending.remove(item.getId()) != null;
+    }
+
+    public void drain() {
+        final Queue queue = Jenkins.getInstance().getQueue();
+        final AdmissionPolicy policy = DockerSlaves.get().getAdmissionPolicy();
+        List<Queue.BuildableItem> items = new ArrayList<Queue.BuildableItem>();
+        synchronized (this) {
+            if (pending.isEmpty() || isThrottled()) return;
+            for (Long id : rank(policy)) {
+                if (isThrottled()) break;
+                Queue.Item item = queue.getItem(id);
+                if (item instanceof Queue.BuildableItem) {
+                    pending.remove(id);
+                    items.add((Queue.BuildableItem) item);
+                    nodes++;
+                }
+                // blocked or waiting items stay pending until buildable again, or cancelled as they leave the
+                // queue, so their label is released
+            }
+        }
+        for (Queue.BuildableItem item : items) {
+            createNode(item);
+        }
+    }
+
+    /**
+     * Pending item ids, in the order <code>policy</code> admits them. Sort is stable, so ties keep queue order.
+     */
+    private List<Long> rank(AdmissionPolicy policy) {
+        final long now = System.currentTimeMillis();
+        final Map<Long, Double> ranks = new LinkedHashMap<Long, Double>();
+        for (Map.Entry<Long, ContainerCountLock.Waiter> entry : pending.entrySet()) {
+            ranks.put(entry.getKey(), policy.rank(entry.getValue(), now));
+        }
+        final List<Long> ids = new ArrayList<Long>(ranks.keySet());
+        Collections.sort(ids, new Comparator<Long>() {
+            @Override
+            public int compare(Long a, Long b) {
+                return Double.compare(ranks.get(a), ranks.get(b));
+            }
+        });
+        return ids;
+    }
+
+    public synchronized int getNodes() {
+        return nodes;
+    }
+
+    public synchronized int getPending() {
+        return pending.size();
+    }
+
+    private boolean isThrottled() {
+        final DockerSlaves plugin = DockerSlaves.get();
+        return plugin.isCapacityAwareProvisioning()
+                && nodes >= plugin.getContainerCap() + plugin.getProvisioningLookahead();
+    }
+
+    private void createNode(Queue.BuildableItem item) {
+        final AbstractProject job = (AbstractProject) item.task;
+        final DockerLabelAssignmentAction action = item.getAction(DockerLabelAssignmentAction.class);
+        try {
+            Jenkins.getInstance().addNode(new DockerSlave(job, action.getLabel().toString(), ContainersDefinitionAction.getDefinition(job, item)));
+        } catch (IOException e) {
+            DockerSlaves.get().getLabelPool().release(action.getLabel().getName());
+            release();
+            LOGGER.log(Level.WARNING, "Failed to create slave for " + item, e);
+        } catch (Descriptor.FormException e) {
+            DockerSlaves.get().getLabelPool().release(action.getLabel().getName());
+            release();
+            LOGGER.log(Level.WARNING, "Failed to create slave for " + item, e);
+        }
+    }
+
+    private static final Logger LOGGER = Logger.getLogger(ProvisioningThrottle.class.getName());
+}
@@ -0,0 +1,145 @@
+/*
+ * The MIT License
+ *
+ *  Copyright (c) 2015, CloudBees, Inc.
+ *
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  of this software and associated documentation files (the "Software"), to deal
+ *  in the Software without restriction, including without limitation the rights
+ *  to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  copies of the Software, and to permit persons to whom the Software is
+ *  furnished to do so, subject to the following conditions:
+ *
+ *  The above copyright notice and this permission notice shall be included in
+ *  all copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ *  THE SOFTWARE.
+ *
+ */
+
+package com.cloudbees.jenkins.plugins.dockerslaves;
+
+import hudson.Extension;
+import hudson.Launcher;
+import hudson.model.AsyncPeriodicWork;
+import hudson.model.Computer;
+import hudson.model.Job;
+import hudson.model.Run;
+import hudson.model.TaskListener;
+import jenkins.model.Jenkins;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Remoting containers are kept after build completion, so next build can reuse the workspace. This periodic task
+ * removes (with their volumes) the stopped ones which aren't referenced by the last
+ * {@link DockerSlaves#getRemotingContainersRetention()} builds of any job.
+ * <p>
+ * When {@link DockerSlaves#isRemotingContainersDryRun()} is set, containers are only reported in task log.
+ */
+@Extension
+public class RemotingContainerCollector extends AsyncPeriodicWork {
+
+    public RemotingContainerCollector() {
+        super("Docker remoting containers collector");
+    }
+
+    @Override
+    public long getRecurrencePeriod() {
+        return TimeUnit.HOURS.toMillis(1);
+    }
+
+    @Override
+    protected void execute(TaskListener listener) throws IOException, InterruptedException {
+        final DockerSlaves plugin = DockerSlaves.get();
+        final int retention = plugin.getRemotingContainersRetention();
+        if (retention <= 0) {
+            return;
+        }
+        final boolean dryRun = plugin.isRemotingContainersDryRun();
+        final PrintStream logger = listener.getLogger();
+
+        final Launcher launcher = new Launcher.LocalLauncher(listener);
+        final DockerDriver driver = new DockerDriver(plugin.getDockerHost());
+        try {
+            // list first, so containers created while we compute the ones in use are not considered.
+            // Only stopped containers are candidates, running ones are hosting a build.
+            List<String> candidates = driver.listContainers(launcher, DockerDriver.REMOTING_LABEL, "exited");
+
+            Set<String> inUse = getReferencedContainers(retention);
+            int removed = 0;
+            for (String id : candidates) {
+                if (inUse.contains(id)) {
+                    continue;
+                }
+                if (dryRun) {
+                    logger.println("Would remove remoting container " + id);
+                } else if (driver.removeContainer(launcher, id, true) == 0) {
+                    logger.println("Removed remoting container " + id);
+                    removed++;
+                }
+            }
+            LOGGER.log(Level.FINE, "{0} remoting containers on docker host, {1} removed", new Object[] {candidates.size(), removed});
+            if (removed > 0) {
+                // cache volumes these containers mounted can now be evicted
+                final CacheVolumeJanitor janitor = CacheVolumeJanitor.get();
+                if (janitor != null) {
+                    janitor.doRun();
+                }
+            }
+        } finally {
+            driver.close();
+        }
+    }
+
+    /**
+     * Collect IDs of remoting containers used by in-progress provisioning, including the previous build container
+     * it forks workspace from, and by last <code>retention</code> builds of all jobs.
+     */
+    private Set<String> getReferencedContainers(int retention) {
+        Set<String> ids = new HashSet<String>();
+
+        for (Computer computer : Jenkins.getInstance().getComputers()) {
+            if (computer instanceof DockerComputer) {
+                DockerJobContainersProvisioner provisioner = ((DockerComputer) computer).getProvisioner();
+                if (provisioner != null) {
+                    addRemotingContainer(ids, provisioner.getContext());
+                    ContainerInstance forkSource = provisioner.getForkSource();
+                    if (forkSource != null && forkSource.getId() != null) {
+                        ids.add(forkSource.getId());
+                    }
+                }
+            }
+        }
+
+        for (Job<?, ?> job : Jenkins.getInstance().getAllItems(Job.class)) {
+            int count = 0;
+            for (Run<?, ?> run : job.getBuilds()) {
+                if (count++ >= retention) break;
+                addRemotingContainer(ids, run.getAction(JobBuildsContainersContext.class));
+            }
+        }
+        return ids;
+    }
+
+    private void addRemotingContainer(Set<String> ids, JobBuildsContainersContext context) {
+        if (context != null && context.getRemotingContainer() != null && context.getRemotingContainer().getId() != null) {
+            ids.add(context.getRemotingContainer().getId());
+        }
+    }
+
+    private static final Logger LOGGER = Logger.getLogger(RemotingContainerCollector.class.getName());
+}
@@ -0,0 +1,72 @@
+/*
+ * The MIT License
+ *
+ *  Copyright (c) 2015, CloudBees, Inc.
+ *
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  of this software and associated documentation files (the "Software"), to deal
+ *  in the Software without restriction, including without limitation the rights
+ *  to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  copies of the Software, and to permit persons to whom the Software is
+ *  furnished to do so, subject to the following conditions:
+ *
+ *  The above copyright notice and this permission notice shall be included in
+ *  all copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ *  THE SOFTWARE.
+ *
+ */
+
+package com.cloudbees.jenkins.plugins.dockerslaves;
+
+import hudson.Extension;
+import hudson.model.Descriptor;
+import org.kohsuke.stapler.DataBoundConstructor;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Admit slaves for short builds first, based on job's estimated duration, so a burst of long builds doesn't delay
+ * quick ones. Waiting time is subtracted from the estimated duration, weighted by {@link #getAging()}, so long builds
+ * eventually get admitted: a build estimated to last one hour which has been waiting for 50 minutes ranks as a fresh
+ * 10 minutes build with the default aging.
+ */
+public class ShortestJobFirstAdmissionPolicy extends AdmissionPolicy {
+
+    /**
+     * Estimated duration of jobs without a successful build.
+     */
+    static final long DEFAULT_DURATION = TimeUnit.MINUTES.toMillis(10);
+
+    private final double aging;
+
+    @DataBoundConstructor
+    public ShortestJobFirstAdmissionPolicy(double aging) {
+        this.aging = aging > 0 ? aging : 1;
+    }
+
+    public double getAging() {
+        return aging;
+    }
+
+    @Override
+    public double rank(ContainerCountLock.Waiter waiter, long now) {
+        final long estimated = waiter.getEstimatedDuration() >= 0 ? waiter.getEstimatedDuration() : DEFAULT_DURATION;
+        return estimated - aging * (now - waiter.getArrival());
+    }
+
+    @Extension
+    public static class DescriptorImpl extends Descriptor<AdmissionPolicy> {
+
+        @Override
+        public String getDisplayName() {
+            return "Shortest estimated build first";
+        }
+    }
+}
@@ -26,93 +26,89 @@ package com.cloudbees.jenkins.plugins.dockerslaves;
 
 import hudson.console.ConsoleNote;
 import hudson.model.TaskListener;
+import hudson.util.DaemonThreadFactory;
+import hudson.util.NamingThreadFactory;
 import org.apache.commons.io.output.ByteArrayOutputStream;
-import org.apache.commons.io.output.DeferredFileOutputStream;
 
-import java.io.File;
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.io.OutputStream;
 import java.io.PrintStream;
 import java.io.PrintWriter;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 /**
  * Delegating {@link hudson.model.TaskListener} that tee output stream
  *
  * Most of the code comes from hudson.maven.SplittableBuildListener}
+ *
+ * Producers only append to an in-memory buffer, which is drained to both the delegate and {@link #side} streams
+ * by a single writer thread. So a chatty build only pays a memory copy per write, and a {@link #side} switch
+ * doesn't stall producers.
  */
 public class TeeTaskListener implements TaskListener {
 
+    /**
+     * Size of the buffer producers append to while writer thread drains the previous one.
+     */
+    private static final int BUFFER_SIZE = 8 * 1024;
+
+    /**
+     * Producers are blocked when this amount of data is pending, so memory stays bounded if sinks are slow.
+     */
+    private static final int MAX_PENDING = 1024 * 1024;
+
+    private static final ExecutorService WRITERS = Executors.newCachedThreadPool(
+            new NamingThreadFactory(new DaemonThreadFactory(), "TeeTaskListener writer"));
+
     private final TaskListener delegate;
 
     /**
      * Used to accumulate data when no one is claiming the {@link #side},
      * so that the next one who set the {@link #side} can claim all the data.
      *
-     * {@link DeferredFileOutputStream} is used so that even if we get out of sync with Maven
-     * and end up accumulating a lot of data, we still won't kill the JVM.
+     * {@link LogSpool.Spool} is used so that even if we end up accumulating a lot of data while waiting for the
+     * build to start, we still won't kill the JVM nor fill master's disk.
      */
-    private DeferredFileOutputStream unclaimed;
+    private LogSpool.Spool unclaimed;
 
-    private final File deferredFile;
+    private final LogSpool spool;
+
+    private final String name;
 
     private volatile OutputStream side;
 
+    private final BatchingTee tee;
+
     /**
      * Constant {@link PrintStream} connected to both {@link #delegate} and {@link #side}.
      * This is so that we can change the side stream without the client noticing it.
      */
     private final PrintStream logger;
 
-    public TeeTaskListener(TaskListener delegate, File deferredFile) {
+    public TeeTaskListener(TaskListener delegate, LogSpool spool, String name) {
         this.delegate = delegate;
-        this.deferredFile = deferredFile;
+        this.spool = spool;
+        this.name = name;
 
-        final OutputStream base = delegate.getLogger();
         unclaimed = newLog();
         side = unclaimed;
 
-        final OutputStream tee = new OutputStream() {
-            public void write(int b) throws IOException {
-                base.write(b);
-                synchronized (lock()) {
-                    side.write(b);
-                }
-            }
-
-            public void write(byte b[], int off, int len) throws IOException {
-                base.write(b, off, len);
-                synchronized (lock()) {
-                    side.write(b, off, len);
-                }
-            }
-
-            public void flush() throws IOException {
-                base.flush();
-                synchronized (lock()) {
-                    side.flush();
-                }
-            }
-
-            public void close() throws IOException {
-                base.close();
-                synchronized (lock()) {
-                    side.close();
-                }
-            }
-        };
-
+        tee = new BatchingTee(delegate.getLogger());
         logger = new PrintStream(tee);
     }
 
     public void setSideOutputStream(OutputStream os) throws IOException {
+        // data written so far belongs to the current side
+        tee.flush();
         synchronized (lock()) {
             if(os==null) {
                 os = unclaimed;
             } else {
                 unclaimed.close();
                 unclaimed.writeTo(os);
-                File f = unclaimed.getFile();
-                if (f!=null)    f.delete();
+                unclaimed.delete();
 
                 unclaimed = newLog();
             }
@@ -120,13 +116,23 @@ public class TeeTaskListener implements TaskListener {
         }
     }
 
-    private DeferredFileOutputStream newLog() {
-        return new DeferredFileOutputStream(10*1024, deferredFile);
+    /**
+     * Release spooled data nobody claimed, when this listener isn't used anymore.
+     */
+    public void release() {
+        logger.flush();
+        synchronized (lock()) {
+            unclaimed.delete();
+        }
+    }
+
+    private LogSpool.Spool newLog() {
+        return spool.create(name);
     }
 
     /**
      * We need to be able to atomically write the buffered bits and then create a fresh {@link ByteArrayOutputStream},
-     * when another thread (pipe I/O thread) is calling log.write().
+     * when the writer thread is calling log.write().
      *
      * This locks controls the access and the write operation to {@link #side} (and since that can point to the same
      * object as {@link #unclaimed}, that access needs to be in the same lock, too.)
@@ -140,31 +146,218 @@ public class TeeTaskListener implements TaskListener {
     }
 
     public PrintWriter error(String msg) {
+        logger.flush();
         delegate.error(msg);
         return new PrintWriter(logger, true);
     }
 
     public PrintWriter error(String format, Object... args) {
+        logger.flush();
         delegate.error(format,args);
         return new PrintWriter(logger, true);
     }
 
     public PrintWriter fatalError(String msg) {
+        logger.flush();
         delegate.fatalError(msg);
         return new PrintWriter(logger, true);
     }
 
     public PrintWriter fatalError(String format, Object... args) {
+        logger.flush();
         delegate.fatalError(format,args);
         return new PrintWriter(logger, true);
     }
 
     public void annotate(ConsoleNote ann) throws IOException {
+        logger.flush();
         delegate.annotate(ann);
     }
 
     @Override
     public void hyperlink(String url, String text) throws IOException {
+        logger.flush();
         delegate.hyperlink(url, text);
     }
+
+    /**
+     * Buffer written by producers and drained by a writer thread to <code>base</code> and {@link #side}.
+     * Writer thread is only running while there's pending data.
+     */
+    private class BatchingTee extends OutputStream implements Runnable {
+
+        private final OutputStream base;
+
+        private byte[] buffer = new byte[BUFFER_SIZE];
+
+        /**
+         * Previously drained buffer, reused for next batch.
+         */
+        private byte[] spare;
+
+        private int count;
+
+        /**
+         * Total bytes written by producers, and drained by writer thread.
+         */
+        private long written, drained;
+
+        private boolean scheduled;
+
+        private IOException failure;
+
+        BatchingTee(OutputStream base) {
+            this.base = base;
+        }
+
+        @Override
+        public synchronized void write(int b) throws IOException {
+            reserve(1);
+            buffer[count++] = (byte) b;
+            written++;
+            schedule();
+        }
+
+        @Override
+        public synchronized void write(byte[] b, int off, int len) throws IOException {
+            if (len == 0) return;
+            reserve(len);
+            System.arraycopy(b, off, buffer, count, len);
+            count += len;
+            written += len;
+            schedule();
+        }
+
+        /**
+         * Wait for writer thread to catch up if too much data is pending, then make room in buffer for
+         * <code>len</code> bytes.
+         */
+        private void reserve(int len) throws IOException {
+            checkFailure();
+            try {
+                while (count > 0 && count + len > MAX_PENDING) {
+                    wait();
+                }
+            } catch (InterruptedException e) {
+                throw new InterruptedIOException();
+            }
+            if (count + len > buffer.length) {
+                byte[] larger = new byte[Math.max(buffer.length * 2, count + len)];
+                System.arraycopy(buffer, 0, larger, 0, count);
+                buffer = larger;
+            }
+        }
+
+        private void schedule() {
+            if (!scheduled) {
+                scheduled = true;
+                WRITERS.execute(this);
+            }
+        }
+
+        private void checkFailure() throws IOException {
+            if (failure != null) {
+                IOException e = failure;
+                failure = null;
+                throw e;
+            }
+        }
+
+        @Override
+        public void run() {
+            boolean completed = false;
+            try {
+                drain();
+                completed = true;
+            } finally {
+                if (!completed) {
+                    synchronized (this) {
+                        // writer is gone, don't leave producers waiting for it: pending data is lost
+                        scheduled = false;
+                        count = 0;
+                        drained = written;
+                        if (failure == null) failure = new IOException("Failed to write build log");
+                        notifyAll();
+                    }
+                }
+            }
+        }
+
+        /**
+         * Writer thread loop: swap buffers, then write to sinks without holding producers lock.
+         */
+        private void drain() {
+            while (true) {
+                byte[] batch;
+                int len;
+                long upTo;
+                synchronized (this) {
+                    if (count == 0) {
+                        scheduled = false;
+                        notifyAll();
+                        return;
+                    }
+                    batch = buffer;
+                    len = count;
+                    upTo = written;
+                    buffer = spare != null ? spare : new byte[BUFFER_SIZE];
+                    spare = null;
+                    count = 0;
+                    notifyAll();
+                }
+
+                IOException error = null;
+                try {
+                    base.write(batch, 0, len);
+                    base.flush();
+                } catch (IOException e) {
+                    error = e;
+                } catch (RuntimeException e) {
+                    error = new IOException(e);
+                }
+                try {
+                    synchronized (lock()) {
+                        side.write(batch, 0, len);
+                        side.flush();
+                    }
+                } catch (IOException e) {
+                    error = e;
+                } catch (RuntimeException e) {
+                    error = new IOException(e);
+                }
+
+                synchronized (this) {
+                    drained = upTo;
+                    if (error != null) failure = error;
+                    if (batch.length == BUFFER_SIZE) spare = batch;
+                    notifyAll();
+                }
+            }
+        }
+
+        /**
+         * Wait for data written so far to be drained to sinks.
+         */
+        @Override
+        public synchronized void flush() throws IOException {
+            final long target = written;
+            try {
+                while (drained < target) {
+                    wait();
+                }
+            } catch (InterruptedException e) {
+                throw new InterruptedIOException();
+            }
+            checkFailure();
+        }
+
+        @Override
+        public void close() throws IOException {
+            flush();
+            base.close();
+            synchronized (lock()) {
+                side.close();
+            }
+        }
+    }
 }
@@ -0,0 +1,319 @@
+/*
+ * The MIT License
+ *
+ *  Copyright (c) 2015, CloudBees, Inc.
+ *
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  of this software and associated documentation files (the "Software"), to deal
+ *  in the Software without restriction, including without limitation the rights
+ *  to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  copies of the Software, and to permit persons to whom the Software is
+ *  furnished to do so, subject to the following conditions:
+ *
+ *  The above copyright notice and this permission notice shall be included in
+ *  all copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ *  THE SOFTWARE.
+ *
+ */
+
+package com.cloudbees.jenkins.plugins.dockerslaves;
+
+import com.google.inject.Inject;
+import hudson.AbortException;
+import hudson.EnvVars;
+import hudson.Extension;
+import hudson.FilePath;
+import hudson.Launcher;
+import hudson.model.Computer;
+import hudson.model.Descriptor;
+import hudson.model.Job;
+import hudson.model.Node;
+import hudson.model.Run;
+import hudson.model.TaskListener;
+import hudson.model.TopLevelItem;
+import jenkins.model.Jenkins;
+import org.apache.commons.lang.StringUtils;
+import org.jenkinsci.plugins.workflow.steps.AbstractStepDescriptorImpl;
+import org.jenkinsci.plugins.workflow.steps.AbstractStepExecutionImpl;
+import org.jenkinsci.plugins.workflow.steps.AbstractStepImpl;
+import org.jenkinsci.plugins.workflow.steps.BodyExecution;
+import org.jenkinsci.plugins.workflow.steps.BodyExecutionCallback;
+import org.jenkinsci.plugins.workflow.steps.StepContext;
+import org.jenkinsci.plugins.workflow.steps.StepContextParameter;
+import org.kohsuke.stapler.DataBoundConstructor;
+import org.kohsuke.stapler.DataBoundSetter;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Pipeline alternative to <code>node</code>: run body into a set of containers provisioned once for the whole block,
+ * so stages inside share the same pod and workspace. Body commands are ran by <code>docker exec</code> into a
+ * long-lived build container, side containers share its network.
+ *
+ * <pre>
+ * withContainers(image: 'maven:3-jdk-8', sideContainers: 'database=mysql webserver=jetty:9') {
+ *     sh 'mvn verify'
+ * }
+ * </pre>
+ */
+public class WithContainersStep extends AbstractStepImpl {
+
+    private final String image;
+
+    private String sideContainers;
+
+    private String constraint;
+
+    @DataBoundConstructor
+    public WithContainersStep(String image) {
+        this.image = image;
+    }
+
+    public String getImage() {
+        return image;
+    }
+
+    public String getSideContainers() {
+        return sideContainers;
+    }
+
+    /**
+     * Side containers as whitespace or comma separated <code>name=image</code> pairs.
+     */
+    @DataBoundSetter
+    public void setSideContainers(String sideContainers) {
+        this.sideContainers = StringUtils.trimToNull(sideContainers);
+    }
+
+    public String getConstraint() {
+        return constraint;
+    }
+
+    @DataBoundSetter
+    public void setConstraint(String constraint) {
+        this.constraint = StringUtils.trimToNull(constraint);
+    }
+
+    protected JobBuildsContainersDefinition createDefinition() throws AbortException {
+        List<SideContainerDefinition> sides = new ArrayList<SideContainerDefinition>();
+        if (sideContainers != null) {
+            for (String side : sideContainers.split("[\\s,]+")) {
+                final int i = side.indexOf('=');
+                if (i <= 0 || i == side.length() - 1) {
+                    throw new AbortException("Invalid side container '" + side + "', expected name=image");
+                }
+                sides.add(new SideContainerDefinition(side.substring(0, i), new ImageIdContainerDefinition(side.substring(i + 1), false)));
+            }
+        }
+        return new JobBuildsContainersDefinition(new ImageIdContainerDefinition(image, false), sides, constraint);
+    }
+
+    public static class Execution extends AbstractStepExecutionImpl {
+
+        private static final long serialVersionUID = 1L;
+
+        @Inject(optional = true)
+        private transient WithContainersStep step;
+
+        @StepContextParameter
+        private transient Run<?, ?> run;
+
+        @StepContextParameter
+        private transient TaskListener listener;
+
+        /**
+         * {@link DockerSlave} hosting the pod.
+         */
+        private String nodeName;
+
+        private transient volatile Future<?> task;
+
+        private transient volatile BodyExecution body;
+
+        @Override
+        public boolean start() throws Exception {
+            final Job job = run.getParent();
+            final DockerSlaves plugin = DockerSlaves.get();
+            final JobBuildsContainersDefinition spec = step.createDefinition();
+
+            final String label = plugin.getLabelPool().acquire();
+            final DockerSlave slave;
+            try {
+                slave = new DockerSlave("Container for " + job.getName() + "#" + run.getNumber() + " " + label, job, label, spec);
+            } catch (Descriptor.FormException e) {
+                plugin.getLabelPool().release(label);
+                throw e;
+            }
+            slave.setForStep(true);
+            nodeName = slave.getNodeName();
+
+            plugin.getProvisioningThrottle().register();
+            try {
+                Jenkins.getInstance().addNode(slave);
+            } catch (IOException e) {
+                plugin.getLabelPool().release(label);
+                plugin.getProvisioningThrottle().release();
+                throw e;
+            }
+            listener.getLogger().println("Provisioning containers on " + nodeName);
+
+            task = Computer.threadPoolForRemoting.submit(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        launch(slave);
+                    } catch (Throwable t) {
+                        terminate(nodeName);
+                        getContext().onFailure(t);
+                    }
+                }
+            });
+            return false;
+        }
+
+        private void launch(DockerSlave slave) throws Exception {
+            final Computer c = slave.toComputer();
+            if (!(c instanceof DockerComputer)) {
+                throw new AbortException("No computer for " + nodeName);
+            }
+            final DockerComputer computer = (DockerComputer) c;
+            try {
+                computer.connect(false).get();
+            } catch (ExecutionException e) {
+                throw new AbortException("Failed to launch " + nodeName + ": " + e.getCause());
+            }
+            if (computer.getChannel() == null) {
+                throw new AbortException("Failed to launch " + nodeName + ", see " + computer.getUrl() + "log");
+            }
+
+            final Job job = run.getParent();
+            final FilePath workspace = job instanceof TopLevelItem
+                    ? slave.getWorkspaceFor((TopLevelItem) job)
+                    : slave.getRootPath().child("workspace");
+            workspace.mkdirs();
+
+            final DockerJobContainersProvisioner provisioner = computer.getProvisioner();
+            provisioner.createExecContainer(listener, workspace.getRemote());
+            run.replaceAction(provisioner.getContext());
+
+            final Launcher launcher = slave.createLauncher(listener);
+            final EnvVars env = new EnvVars();
+            final EnvVars contextEnv = getContext().get(EnvVars.class);
+            if (contextEnv != null) {
+                env.putAll(contextEnv);
+            }
+            env.put("NODE_NAME", nodeName);
+            env.put("NODE_LABELS", slave.getLabelString());
+            env.put("WORKSPACE", workspace.getRemote());
+
+            body = getContext().newBodyInvoker()
+                    .withContexts(computer, workspace, launcher, env)
+                    .withCallback(new Callback(nodeName))
+                    .start();
+        }
+
+        @Override
+        public void stop(Throwable cause) throws Exception {
+            final BodyExecution b = body;
+            if (b != null) {
+                b.cancel(cause);
+                return;
+            }
+            final Future<?> t = task;
+            if (t != null) {
+                t.cancel(true);
+            }
+            terminate(nodeName);
+            getContext().onFailure(cause);
+        }
+
+        @Override
+        public void onResume() {
+            // DockerSlave is an ephemeral node, so the pod didn't survive restart
+            terminate(nodeName);
+            getContext().onFailure(new AbortException("Containers on " + nodeName + " were lost on Jenkins restart"));
+        }
+    }
+
+    private static class Callback extends BodyExecutionCallback {
+
+        private static final long serialVersionUID = 1L;
+
+        private final String nodeName;
+
+        Callback(String nodeName) {
+            this.nodeName = nodeName;
+        }
+
+        @Override
+        public void onSuccess(StepContext context, Object result) {
+            terminate(nodeName);
+            context.onSuccess(result);
+        }
+
+        @Override
+        public void onFailure(StepContext context, Throwable t) {
+            terminate(nodeName);
+            context.onFailure(t);
+        }
+    }
+
+    /**
+     * Remove pod containers and its slave.
+     */
+    static void terminate(String nodeName) {
+        if (nodeName == null) return;
+        final Node node = Jenkins.getInstance().getNode(nodeName);
+        if (!(node instanceof DockerSlave)) return;
+        final Computer computer = node.toComputer();
+        try {
+            if (computer instanceof DockerComputer && ((DockerComputer) computer).getProvisioner() != null) {
+                ((DockerComputer) computer).terminate();
+            } else {
+                ((DockerSlave) node).terminate();
+            }
+        } catch (InterruptedException e) {
+            LOGGER.log(Level.WARNING, "Interrupted while terminating " + nodeName, e);
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Failed to terminate " + nodeName, e);
+        }
+    }
+
+    @Extension
+    public static class DescriptorImpl extends AbstractStepDescriptorImpl {
+
+        public DescriptorImpl() {
+            super(Execution.class);
+        }
+
+        @Override
+        public String getFunctionName() {
+            return "withContainers";
+        }
+
+        @Override
+        public String getDisplayName() {
+            return "Run build steps inside Docker containers";
+        }
+
+        @Override
+        public boolean takesImplicitBlockArgument() {
+            return true;
+        }
+    }
+
+    private static final Logger LOGGER = Logger.getLogger(WithContainersStep.class.getName());
+}
@@ -0,0 +1,148 @@
+package com.cloudbees.jenkins.plugins.dockerslaves;
+
+import org.apache.commons.io.IOUtils;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+
+/**
+ * Replay a recorded queue trace against an {@link AdmissionPolicy}, as a discrete event simulation of the containers
+ * cap: builds arrive, wait for a slot as ranked by the policy, and hold it for their actual duration.
+ * <p>
+ * Trace is CSV, one build per line as <code>arrival,duration,estimated</code> in milliseconds, estimated being
+ * <code>-1</code> if unknown. Lines starting with <code>#</code> are ignored. Run against a custom trace with:
+ * <pre>
+ * mvn test-compile exec:java -Dexec.classpathScope=test \
+ *   -Dexec.mainClass=com.cloudbees.jenkins.plugins.dockerslaves.AdmissionPolicySimulator -Dexec.args="trace.csv 10"
+ * </pre>
+ */
+public class AdmissionPolicySimulator {
+
+    public static class Build {
+        final long arrival;
+        final long duration;
+        final long estimated;
+        long wait;
+
+        Build(long arrival, long duration, long estimated) {
+            this.arrival = arrival;
+            this.duration = duration;
+            this.estimated = estimated;
+        }
+    }
+
+    public static class Result {
+        final long[] waits;
+
+        Result(long[] waits) {
+            this.waits = waits;
+            Arrays.sort(this.waits);
+        }
+
+        public double getMeanWait() {
+            long total = 0;
+            for (long wait : waits) total += wait;
+            return waits.length == 0 ? 0 : (double) total / waits.length;
+        }
+
+        public long getWait(double quantile) {
+            return waits.length == 0 ? 0 : waits[Math.min((int) (quantile * waits.length), waits.length - 1)];
+        }
+
+        public long getMaxWait() {
+            return waits.length == 0 ? 0 : waits[waits.length - 1];
+        }
+
+        @Override
+        public String toString() {
+            return String.format("mean %.1f min, p50 %.1f min, p90 %.1f min, max %.1f min",
+                    getMeanWait() / 60000, getWait(0.5) / 60000., getWait(0.9) / 60000., getMaxWait() / 60000.);
+        }
+    }
+
+    public static List<Build> load(InputStream in) throws IOException {
+        List<Build> trace = new ArrayList<Build>();
+        for (String line : IOUtils.readLines(in, "UTF-8")) {
+            line = line.trim();
+            if (line.isEmpty() || line.startsWith("#")) continue;
+            String[] fields = line.split(",");
+            trace.add(new Build(Long.parseLong(fields[0].trim()), Long.parseLong(fields[1].trim()), Long.parseLong(fields[2].trim())));
+        }
+        Collections.sort(trace, new Comparator<Build>() {
+            @Override
+            public int compare(Build o1, Build o2) {
+                return Long.compare(o1.arrival, o2.arrival);
+            }
+        });
+        return trace;
+    }
+
+    public static Result simulate(List<Build> trace, int cap, AdmissionPolicy policy) {
+        final PriorityQueue<Long> running = new PriorityQueue<Long>();
+        final List<ContainerCountLock.Waiter> waiters = new ArrayList<ContainerCountLock.Waiter>();
+        final List<Build> waiting = new ArrayList<Build>();
+        final long[] waits = new long[trace.size()];
+        int next = 0, admitted = 0;
+        long now = 0;
+
+        while (admitted < trace.size()) {
+            // advance to next event: an arrival or a slot released
+            long nextArrival = next < trace.size() ? trace.get(next).arrival : Long.MAX_VALUE;
+            long nextRelease = running.isEmpty() ? Long.MAX_VALUE : running.peek();
+            now = Math.min(nextArrival, nextRelease);
+
+            while (!running.isEmpty() && running.peek() <= now) {
+                running.poll();
+            }
+            while (next < trace.size() && trace.get(next).arrival <= now) {
+                Build build = trace.get(next++);
+                waiters.add(new ContainerCountLock.Waiter("build", null, null, build.estimated, build.arrival));
+                waiting.add(build);
+            }
+
+            while (running.size() < cap && !waiters.isEmpty()) {
+                int best = 0;
+                double bestRank = policy.rank(waiters.get(0), now);
+                for (int i = 1; i < waiters.size(); i++) {
+                    double rank = policy.rank(waiters.get(i), now);
+                    if (rank < bestRank) {
+                        best = i;
+                        bestRank = rank;
+                    }
+                }
+                waiters.remove(best);
+                Build build = waiting.remove(best);
+                waits[admitted++] = now - build.arrival;
+                running.add(now + build.duration);
+            }
+        }
+        return new Result(waits);
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 2) {
+            System.err.println("Usage: AdmissionPolicySimulator <trace.csv> <cap> [aging]");
+            System.exit(1);
+        }
+        final List<Build> trace;
+        final InputStream in = new FileInputStream(args[0]);
+        try {
+            trace = load(in);
+        } finally {
+            in.close();
+        }
+        final int cap = Integer.parseInt(args[1]);
+        final double aging = args.length > 2 ? Double.parseDouble(args[2]) : 1;
+
+        System.out.println(trace.size() + " builds, cap " + cap);
+        System.out.println("fifo: " + simulate(trace, cap, new FifoAdmissionPolicy()));
+        System.out.println("sjf (aging " + aging + "): " + simulate(trace, cap, new ShortestJobFirstAdmissionPolicy(aging)));
+    }
+}
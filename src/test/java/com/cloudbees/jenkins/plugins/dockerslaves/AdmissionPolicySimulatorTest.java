@@ -0,0 +1,43 @@
+package com.cloudbees.jenkins.plugins.dockerslaves;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.InputStream;
+import java.util.List;
+
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.*;
+
+public class AdmissionPolicySimulatorTest {
+
+    private static final int CAP = 6;
+
+    private List<AdmissionPolicySimulator.Build> trace;
+
+    @Before
+    public void loadTrace() throws Exception {
+        InputStream in = getClass().getResourceAsStream("admission-trace.csv");
+        try {
+            trace = AdmissionPolicySimulator.load(in);
+        } finally {
+            in.close();
+        }
+    }
+
+    @Test
+    public void shortestJobFirstReducesMeanWait() {
+        AdmissionPolicySimulator.Result fifo = AdmissionPolicySimulator.simulate(trace, CAP, new FifoAdmissionPolicy());
+        AdmissionPolicySimulator.Result sjf = AdmissionPolicySimulator.simulate(trace, CAP, new ShortestJobFirstAdmissionPolicy(1));
+
+        assertThat(sjf.getMeanWait(), lessThan(fifo.getMeanWait()));
+    }
+
+    @Test
+    public void agingBoundsLongestWait() {
+        AdmissionPolicySimulator.Result aged = AdmissionPolicySimulator.simulate(trace, CAP, new ShortestJobFirstAdmissionPolicy(1));
+        AdmissionPolicySimulator.Result unaged = AdmissionPolicySimulator.simulate(trace, CAP, new ShortestJobFirstAdmissionPolicy(0.001));
+
+        assertThat(aged.getMaxWait(), lessThan(unaged.getMaxWait()));
+    }
+}
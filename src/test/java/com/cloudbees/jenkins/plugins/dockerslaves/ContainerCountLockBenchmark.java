@@ -0,0 +1,58 @@
+package com.cloudbees.jenkins.plugins.dockerslaves;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Acquire / release cycle on {@link ContainerCountLock} as done by provisioning threads, under contention.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class ContainerCountLockBenchmark {
+
+    private static final String DEFAULT_CONSTRAINT = "";
+
+    private ContainerCountLock lock;
+
+    private JobBuildsContainersContext context;
+
+    @Setup
+    public void setup() {
+        lock = new ContainerCountLock(Integer.MAX_VALUE, DEFAULT_CONSTRAINT);
+        context = new JobBuildsContainersContext();
+        context.setConstraint(DEFAULT_CONSTRAINT);
+    }
+
+    private boolean acquireRelease() {
+        ContainerCountLock.Lease lease;
+        synchronized (lock) {
+            lease = lock.acquire("benchmark", context);
+        }
+        if (lease != null) {
+            synchronized (lock) {
+                lock.release(lease);
+            }
+        }
+        return lease != null;
+    }
+
+    @Benchmark
+    public boolean uncontended() {
+        return acquireRelease();
+    }
+
+    @Benchmark
+    @Threads(16)
+    public boolean contended() {
+        return acquireRelease();
+    }
+}
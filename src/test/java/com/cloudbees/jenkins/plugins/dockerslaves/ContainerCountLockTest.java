@@ -0,0 +1,155 @@
+package com.cloudbees.jenkins.plugins.dockerslaves;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.*;
+
+public class ContainerCountLockTest {
+
+    private static final String DEFAULT_CONSTRAINT = "";
+
+    private ContainerCountLock lock;
+
+    private JobBuildsContainersContext context;
+
+    @Before
+    public void setup() {
+        lock = new ContainerCountLock(2, DEFAULT_CONSTRAINT);
+        context = new JobBuildsContainersContext();
+        context.setConstraint(DEFAULT_CONSTRAINT);
+        context.setRemotingContainer(new ContainerInstance("remoting", "abc"));
+    }
+
+    @Test
+    public void leasesAreBoundByLimit() {
+        ContainerCountLock.Lease first = lock.acquire("slave-1", context);
+        ContainerCountLock.Lease second = lock.acquire("slave-2", context);
+
+        assertThat(first, notNullValue());
+        assertThat(first.getContainerId(), is("abc"));
+        assertThat(second, notNullValue());
+        assertThat(lock.acquire("slave-3", context), nullValue());
+        assertThat(lock.getLeases(), hasSize(2));
+    }
+
+    @Test
+    public void releaseIsIdempotent() {
+        ContainerCountLock.Lease lease = lock.acquire("slave-1", context);
+        lock.acquire("slave-2", context);
+
+        assertTrue(lock.release(lease));
+        assertFalse(lock.release(lease));
+        assertThat(lock.getCount(context), is(1));
+    }
+
+    @Test
+    public void reclaimedLeaseIsNotReleasedTwice() {
+        ContainerCountLock.Lease lease = lock.acquire("slave-1", context);
+
+        assertTrue(lock.reclaim(lease));
+        assertFalse(lock.release(lease));
+        assertThat(lock.getCount(context), is(0));
+        assertThat(lock.getReclaimed(), is(1));
+    }
+
+    @Test
+    public void restoredLeaseIsFlagged() {
+        ContainerCountLock.Lease restored = lock.restore("job#1", "job", DEFAULT_CONSTRAINT, "abc");
+        ContainerCountLock.Lease acquired = lock.acquire("slave-1", context);
+
+        assertTrue(restored.isRestored());
+        assertFalse(acquired.isRestored());
+        assertThat(lock.getCount(context), is(2));
+    }
+
+    @Test
+    public void claimedReservationIsALease() {
+        assertThat(lock.reserve("matrix#1", "matrix", DEFAULT_CONSTRAINT, 3), is(2));
+
+        ContainerCountLock.Lease lease = lock.claimReservation("matrix#1", "slave-1", "matrix/axis=a", context);
+        assertThat(lease, notNullValue());
+        assertThat(lock.claimReservation("matrix#2", "slave-2", "matrix/axis=b", context), nullValue());
+        assertThat(lock.releaseReservations("matrix#1"), is(1));
+        assertThat(lock.getCount(context), is(1));
+
+        lock.release(lease);
+        assertThat(lock.getCount(context), is(0));
+    }
+
+    @Test
+    public void reservationIsBoundByQuotas() {
+        CapacityQuota teamA = new CapacityQuota("team-a", 0, 1);
+        lock.setQuotas(Arrays.asList(teamA));
+
+        assertThat(lock.reserve("team-a/matrix#1", "team-a/matrix", DEFAULT_CONSTRAINT, 3), is(1));
+        assertThat(lock.getUsage(teamA), is(1));
+
+        ContainerCountLock.Waiter app = lock.enqueue("slave-1", "team-a/app", context, -1);
+        assertThat(lock.acquire(app, context), nullValue());
+        lock.cancel(app);
+
+        assertThat(lock.releaseReservations("team-a/matrix#1"), is(1));
+        assertThat(lock.getUsage(teamA), is(0));
+    }
+
+    @Test
+    public void burstIsEnforcedForAllJobsInFolder() {
+        CapacityQuota teamA = new CapacityQuota("team-a", 0, 1);
+        lock.setQuotas(Arrays.asList(teamA));
+
+        ContainerCountLock.Waiter app = lock.enqueue("slave-1", "team-a/app", context, -1);
+        ContainerCountLock.Waiter lib = lock.enqueue("slave-2", "team-a/lib", context, -1);
+        ContainerCountLock.Waiter other = lock.enqueue("slave-3", "team-b/app", context, -1);
+
+        assertThat(lock.acquire(app, context), notNullValue());
+        assertThat(lock.acquire(lib, context), nullValue());
+        assertThat(lock.acquire(other, context), notNullValue());
+        assertThat(lock.getUsage(teamA), is(1));
+    }
+
+    @Test
+    public void releaseSignalsOnlyNextWaiter() throws Exception {
+        ContainerCountLock.Lease lease = lock.acquire("slave-1", context);
+        lock.acquire("slave-2", context);
+        ContainerCountLock.Waiter first = lock.enqueue("slave-3", "app", context, -1);
+        ContainerCountLock.Waiter second = lock.enqueue("slave-4", "app", context, -1);
+
+        lock.release(lease);
+
+        long start = System.nanoTime();
+        first.await(10000);
+        assertThat(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start), lessThan(5000L));
+        start = System.nanoTime();
+        second.await(100);
+        assertThat(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start), greaterThanOrEqualTo(90L));
+        assertThat(lock.acquire(first, context), notNullValue());
+    }
+
+    @Test
+    public void usageIsCountedForLeasesTakenBeforeQuotas() {
+        lock.restore("team-a/app#1", "team-a/app", DEFAULT_CONSTRAINT, "abc");
+        CapacityQuota teamA = new CapacityQuota("team-a", 0, 1);
+        lock.setQuotas(Arrays.asList(teamA));
+
+        assertThat(lock.getUsage(teamA), is(1));
+        ContainerCountLock.Waiter app = lock.enqueue("slave-1", "team-a/lib", context, -1);
+        assertThat(lock.acquire(app, context), nullValue());
+    }
+
+    @Test
+    public void minIsGuaranteedToWaitingJobs() {
+        lock.setQuotas(Arrays.asList(new CapacityQuota("team-b", 1, 0)));
+
+        assertThat(lock.acquire("slave-1", context), notNullValue());
+        ContainerCountLock.Waiter teamA = lock.enqueue("slave-2", "team-a/app", context, -1);
+        ContainerCountLock.Waiter teamB = lock.enqueue("slave-3", "team-b/app", context, -1);
+
+        assertThat(lock.acquire(teamA, context), nullValue());
+        assertThat(lock.acquire(teamB, context), notNullValue());
+    }
+}
@@ -0,0 +1,90 @@
+package com.cloudbees.jenkins.plugins.dockerslaves;
+
+import hudson.Proc;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.*;
+
+public class ContainerProcTest {
+
+    @Test
+    public void interruptedJoinStopsContainer() throws Exception {
+        final ContainerInstance instance = new ContainerInstance("build", "abc");
+        final BlockingProc delegate = new BlockingProc();
+        final AtomicBoolean stopped = new AtomicBoolean();
+        final DockerJobContainersProvisioner.ContainerProc proc = new DockerJobContainersProvisioner.ContainerProc(delegate, instance) {
+            @Override
+            protected void stopContainer() {
+                stopped.set(true);
+            }
+        };
+
+        final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+        Thread executor = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    proc.join();
+                } catch (Throwable t) {
+                    failure.set(t);
+                }
+            }
+        };
+        executor.start();
+        assertTrue(delegate.joining.await(5, TimeUnit.SECONDS));
+        executor.interrupt();
+        executor.join(5000);
+
+        assertThat(failure.get(), instanceOf(InterruptedException.class));
+        assertTrue(stopped.get());
+        assertTrue(delegate.killed);
+        assertThat(instance.getTimeline(), hasSize(1));
+        assertThat(instance.getTimeline().get(0).getEvent(), is(ContainerInstance.Event.EXITED));
+    }
+
+    private static class BlockingProc extends Proc {
+        final CountDownLatch joining = new CountDownLatch(1);
+        volatile boolean killed;
+
+        @Override
+        public boolean isAlive() {
+            return !killed;
+        }
+
+        @Override
+        public void kill() {
+            killed = true;
+        }
+
+        @Override
+        public int join() throws InterruptedException {
+            joining.countDown();
+            new CountDownLatch(1).await();
+            return 0;
+        }
+
+        @Override
+        public InputStream getStdout() {
+            return null;
+        }
+
+        @Override
+        public InputStream getStderr() {
+            return null;
+        }
+
+        @Override
+        public OutputStream getStdin() {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,67 @@
+package com.cloudbees.jenkins.plugins.dockerslaves;
+
+import hudson.Functions;
+import hudson.model.FreeStyleBuild;
+import hudson.model.FreeStyleProject;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.jvnet.hudson.test.JenkinsRule;
+
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.*;
+import static org.junit.Assume.*;
+
+public class DockerComputerLauncherTest {
+
+    @Rule
+    public JenkinsRule j = new JenkinsRule();
+
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    private FakeDocker docker;
+
+    @Before
+    public void setUp() throws Exception {
+        assumeFalse(Functions.isWindows());
+
+        System.setProperty("fakeDocker.FAIL_create", "100");
+        try {
+            docker = new FakeDocker(tmp.newFolder("docker"));
+            docker.install();
+        } finally {
+            System.clearProperty("fakeDocker.FAIL_create");
+        }
+        DockerSlaves.get().setDefaultConstraint("");
+    }
+
+    @After
+    public void tearDown() {
+        if (docker != null) docker.uninstall();
+    }
+
+    @Test
+    public void launchFailureIsLoggedOnBuild() throws Exception {
+        FreeStyleProject p = j.createFreeStyleProject();
+        p.addProperty(new JobBuildsContainersDefinition(new ImageIdContainerDefinition("busybox", false),
+                Collections.<SideContainerDefinition>emptyList(), null));
+        p.scheduleBuild2(0);
+
+        // failed build is recorded, then its log is written
+        long deadline = System.currentTimeMillis() + TimeUnit.MINUTES.toMillis(1);
+        String log = "";
+        while (!log.contains("Failed to run docker image") && System.currentTimeMillis() < deadline) {
+            Thread.sleep(100);
+            FreeStyleBuild build = p.getLastBuild();
+            if (build != null) log = build.getLog();
+        }
+        assertThat(log, containsString("fake-docker: injected failure for create"));
+        assertThat(log, containsString("Failed to run docker image"));
+    }
+}
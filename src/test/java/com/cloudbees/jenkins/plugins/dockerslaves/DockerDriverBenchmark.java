@@ -0,0 +1,79 @@
+package com.cloudbees.jenkins.plugins.dockerslaves;
+
+import hudson.util.ArgumentListBuilder;
+import org.apache.commons.io.output.NullOutputStream;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * {@link DockerDriver} work done on master for each build step: <code>docker create</code> command line, and
+ * <code>/etc/passwd</code> tar round trip for user injection.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class DockerDriverBenchmark {
+
+    private static final String CONTAINER_ID = "4f1c4e2b0a6d5f3e9b8c7a6d5e4f3a2b1c0d9e8f7a6b5c4d3e2f1a0b9c8d7e6f";
+
+    private String[] envs;
+
+    private List<String> cmds;
+
+    private boolean[] masks;
+
+    private byte[] passwd;
+
+    private byte[] archive;
+
+    @Setup
+    public void setup() throws IOException {
+        envs = new String[40];
+        for (int i = 0; i < envs.length; i++) {
+            envs[i] = "VARIABLE_" + i + "=some value for variable " + i;
+        }
+        cmds = Arrays.asList("/bin/sh", "-xe", "/home/jenkins/.tmp/hudson4262583718926454357.sh", "--token", "secret");
+        masks = new boolean[] { false, false, false, false, true };
+
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < 30; i++) {
+            sb.append("user").append(i).append(":x:").append(1000 + i).append(":").append(1000 + i).append("::/home/user").append(i).append(":/bin/sh\n");
+        }
+        passwd = sb.toString().getBytes("UTF-8");
+        archive = DockerDriver.tar("passwd", passwd);
+    }
+
+    @Benchmark
+    public String[] buildContainerArgs() {
+        ArgumentListBuilder args = DockerDriver.buildContainerArgs("maven:3.3.9-jdk-8", CONTAINER_ID, "/home/jenkins/workspace/job", envs, cmds, masks);
+        DockerDriver.prependArgs(args, "tcp://docker.example.com:2376");
+        return args.toCommandArray();
+    }
+
+    @Benchmark
+    public String operation() {
+        ArgumentListBuilder args = new ArgumentListBuilder().add("volume", "rm", "jenkins-cache-m2");
+        DockerDriver.prependArgs(args, "tcp://docker.example.com:2376");
+        return DockerDriver.operation(args);
+    }
+
+    @Benchmark
+    public byte[] tar() throws IOException {
+        return DockerDriver.tar("passwd", passwd);
+    }
+
+    @Benchmark
+    public void untar() throws IOException {
+        DockerDriver.untar(archive, new NullOutputStream());
+    }
+}
@@ -0,0 +1,81 @@
+package com.cloudbees.jenkins.plugins.dockerslaves;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.*;
+
+public class DockerEndpointHealthTest {
+
+    @Test
+    public void opensAfterConsecutiveFailures() throws Exception {
+        DockerEndpointHealth health = new DockerEndpointHealth("test", 2, 60000);
+        health.enter();
+        health.failure("timeout");
+        health.enter();
+        health.success();
+        health.enter();
+        health.failure("timeout");
+        assertThat(health.getState(), is(DockerEndpointHealth.State.CLOSED));
+
+        health.enter();
+        health.failure("timeout");
+        assertThat(health.getState(), is(DockerEndpointHealth.State.OPEN));
+        try {
+            health.enter();
+            fail("endpoint should be unavailable");
+        } catch (IOException e) {
+            assertThat(e.getMessage(), containsString("timeout"));
+        }
+    }
+
+    @Test
+    public void onlyHealthCheckIsATrialOnceCooledDown() throws Exception {
+        DockerEndpointHealth health = new DockerEndpointHealth("test", 1, 0);
+        health.enter();
+        health.failure("timeout");
+        assertThat(health.getState(), is(DockerEndpointHealth.State.OPEN));
+
+        try {
+            health.enter();
+            fail("regular commands wait for health check to close breaker");
+        } catch (IOException e) {
+            // expected
+        }
+
+        health.enterProbe();
+        assertThat(health.getState(), is(DockerEndpointHealth.State.HALF_OPEN));
+        try {
+            health.checkAvailable();
+            fail("endpoint is unavailable until trial succeeds");
+        } catch (IOException e) {
+            // expected
+        }
+        health.failure("timeout");
+        assertThat(health.getState(), is(DockerEndpointHealth.State.OPEN));
+
+        health.enterProbe();
+        health.abort();
+        assertThat(health.getState(), is(DockerEndpointHealth.State.OPEN));
+
+        health.enterProbe();
+        health.success();
+        assertThat(health.getState(), is(DockerEndpointHealth.State.CLOSED));
+        health.enter();
+    }
+
+    @Test
+    public void unreachableDaemonIsDetectedFromErrorOutput() throws Exception {
+        ByteArrayOutputStream log = new ByteArrayOutputStream();
+        DockerEndpointHealth.ErrorOutputMonitor monitor = new DockerEndpointHealth.ErrorOutputMonitor(log);
+        monitor.write("Error response from daemon: No such container: abc\n".getBytes("UTF-8"));
+        assertThat(monitor.getUnreachable(), nullValue());
+
+        monitor.write("Cannot connect to the Docker daemon at tcp://docker:2376. Is the docker daemon running?\n".getBytes("UTF-8"));
+        assertThat(monitor.getUnreachable(), notNullValue());
+        assertThat(log.toString("UTF-8"), containsString("No such container"));
+    }
+}
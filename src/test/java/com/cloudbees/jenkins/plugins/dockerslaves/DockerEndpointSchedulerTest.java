@@ -0,0 +1,91 @@
+package com.cloudbees.jenkins.plugins.dockerslaves;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.*;
+
+public class DockerEndpointSchedulerTest {
+
+    @Test
+    public void operationsAreClassified() {
+        assertThat(DockerEndpointScheduler.OpClass.of("pull"), is(DockerEndpointScheduler.OpClass.PULL));
+        assertThat(DockerEndpointScheduler.OpClass.of("build"), is(DockerEndpointScheduler.OpClass.PULL));
+        assertThat(DockerEndpointScheduler.OpClass.of("cp"), is(DockerEndpointScheduler.OpClass.COPY));
+        assertThat(DockerEndpointScheduler.OpClass.of("volume rm"), is(DockerEndpointScheduler.OpClass.REMOVE));
+        assertThat(DockerEndpointScheduler.OpClass.of("inspect"), is(DockerEndpointScheduler.OpClass.INSPECT));
+        assertThat(DockerEndpointScheduler.OpClass.of("create"), is(DockerEndpointScheduler.OpClass.CREATE));
+    }
+
+    @Test
+    public void shortRequestsGoBeforePulls() throws Exception {
+        final DockerEndpointScheduler scheduler = new DockerEndpointScheduler("test", 1, 0);
+        scheduler.acquire(DockerEndpointScheduler.OpClass.CREATE);
+
+        final List<DockerEndpointScheduler.OpClass> order = Collections.synchronizedList(new ArrayList<DockerEndpointScheduler.OpClass>());
+        Thread pull = waiter(scheduler, DockerEndpointScheduler.OpClass.PULL, order);
+        while (scheduler.getQueueDepth(DockerEndpointScheduler.OpClass.PULL) == 0) Thread.sleep(10);
+        Thread inspect = waiter(scheduler, DockerEndpointScheduler.OpClass.INSPECT, order);
+        while (scheduler.getQueueDepth(DockerEndpointScheduler.OpClass.INSPECT) == 0) Thread.sleep(10);
+
+        scheduler.release(DockerEndpointScheduler.OpClass.CREATE);
+        pull.join(5000);
+        inspect.join(5000);
+
+        assertThat(order, contains(DockerEndpointScheduler.OpClass.INSPECT, DockerEndpointScheduler.OpClass.PULL));
+        assertThat(scheduler.getRunning(), is(0));
+    }
+
+    @Test
+    public void longPullsDontStarveShortRequests() throws Exception {
+        final DockerEndpointScheduler scheduler = new DockerEndpointScheduler("test", 4, 1);
+        for (int i = 0; i < 3; i++) {
+            scheduler.acquire(DockerEndpointScheduler.OpClass.PULL);
+        }
+        final List<DockerEndpointScheduler.OpClass> order = Collections.synchronizedList(new ArrayList<DockerEndpointScheduler.OpClass>());
+        Thread pull = waiter(scheduler, DockerEndpointScheduler.OpClass.PULL, order);
+        while (scheduler.getQueueDepth(DockerEndpointScheduler.OpClass.PULL) == 0) Thread.sleep(10);
+
+        Thread inspect = waiter(scheduler, DockerEndpointScheduler.OpClass.INSPECT, order);
+        inspect.join(5000);
+        assertThat(order, contains(DockerEndpointScheduler.OpClass.INSPECT));
+        assertThat(scheduler.getQueueDepth(DockerEndpointScheduler.OpClass.PULL), is(1));
+
+        scheduler.release(DockerEndpointScheduler.OpClass.PULL);
+        pull.join(5000);
+        assertThat(order, contains(DockerEndpointScheduler.OpClass.INSPECT, DockerEndpointScheduler.OpClass.PULL));
+    }
+
+    @Test
+    public void tokenBucketLimitsBurst() {
+        DockerEndpointScheduler.TokenBucket bucket = new DockerEndpointScheduler.TokenBucket(1, 2);
+        long now = System.nanoTime();
+        assertThat(bucket.delay(now), is(0L));
+        bucket.take();
+        assertThat(bucket.delay(now), is(0L));
+        bucket.take();
+        assertThat(bucket.delay(now), greaterThan(0L));
+    }
+
+    private static Thread waiter(final DockerEndpointScheduler scheduler, final DockerEndpointScheduler.OpClass op,
+                                 final List<DockerEndpointScheduler.OpClass> order) {
+        Thread t = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    scheduler.acquire(op);
+                    order.add(op);
+                    scheduler.release(op);
+                } catch (InterruptedException e) {
+                    throw new AssertionError(e);
+                }
+            }
+        };
+        t.start();
+        return t;
+    }
+}
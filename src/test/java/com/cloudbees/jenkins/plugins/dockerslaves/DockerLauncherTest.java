@@ -0,0 +1,78 @@
+package com.cloudbees.jenkins.plugins.dockerslaves;
+
+import hudson.Proc;
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.*;
+
+public class DockerLauncherTest {
+
+    private final ScheduledExecutorService executor = new ScheduledThreadPoolExecutor(1);
+
+    @After
+    public void tearDown() {
+        executor.shutdownNow();
+    }
+
+    @Test
+    public void permitIsReleasedWhenProcessExitsWithoutJoin() throws Exception {
+        final Semaphore permits = new Semaphore(4, true);
+        for (int i = 0; i < 10; i++) {
+            assertTrue("permit " + i + " should be released by exited processes", permits.tryAcquire(10, TimeUnit.SECONDS));
+            DockerLauncher.PermitProc proc = new DockerLauncher.PermitProc(new ExitedProc(), permits);
+            proc.watch(executor);
+        }
+    }
+
+    @Test
+    public void permitIsReleasedOnce() throws Exception {
+        final Semaphore permits = new Semaphore(1);
+        permits.acquire();
+        DockerLauncher.PermitProc proc = new DockerLauncher.PermitProc(new ExitedProc(), permits);
+        proc.watch(executor);
+        proc.join();
+        proc.kill();
+        Thread.sleep(2 * DockerLauncher.PermitProc.POLL_PERIOD);
+        assertThat(permits.availablePermits(), is(1));
+    }
+
+    private static class ExitedProc extends Proc {
+        @Override
+        public boolean isAlive() {
+            return false;
+        }
+
+        @Override
+        public void kill() {
+        }
+
+        @Override
+        public int join() {
+            return 0;
+        }
+
+        @Override
+        public InputStream getStdout() {
+            return null;
+        }
+
+        @Override
+        public InputStream getStderr() {
+            return null;
+        }
+
+        @Override
+        public OutputStream getStdin() {
+            return null;
+        }
+    }
+}
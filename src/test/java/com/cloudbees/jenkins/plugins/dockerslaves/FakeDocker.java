@@ -0,0 +1,75 @@
+package com.cloudbees.jenkins.plugins.dockerslaves;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Map;
+import java.util.Properties;
+
+/**
+ * Installs <code>fake-docker.sh</code> as the docker CLI used by {@link DockerDriver}. Behaviour is configured by
+ * <code>fakeDocker.*</code> system properties, i.e. <code>-DfakeDocker.LATENCY_create=0.5</code>, see script for
+ * supported settings.
+ */
+public class FakeDocker {
+
+    private final File home;
+
+    public FakeDocker(File home) {
+        this.home = home;
+    }
+
+    public void install() throws IOException {
+        File script = new File(home, "docker");
+        InputStream in = FakeDocker.class.getResourceAsStream("fake-docker.sh");
+        OutputStream out = new FileOutputStream(script);
+        try {
+            IOUtils.copy(in, out);
+        } finally {
+            IOUtils.closeQuietly(in);
+            IOUtils.closeQuietly(out);
+        }
+        script.setExecutable(true);
+
+        StringBuilder conf = new StringBuilder();
+        Properties properties = System.getProperties();
+        for (Map.Entry<Object, Object> property : properties.entrySet()) {
+            String key = property.getKey().toString();
+            if (key.startsWith("fakeDocker.")) {
+                conf.append(key.substring("fakeDocker.".length())).append('=').append(property.getValue()).append('\n');
+            }
+        }
+        FileUtils.writeStringToFile(new File(home, "fake-docker.conf"), conf.toString());
+
+        DockerDriver.setCommand(script.getAbsolutePath());
+    }
+
+    public void uninstall() {
+        DockerDriver.setCommand(null);
+    }
+
+    /**
+     * Count containers with <code>role</code> (remoting, build or side) and optional <code>status</code>.
+     */
+    public int count(String role, String status) throws IOException {
+        File[] containers = new File(home, "state/containers").listFiles();
+        if (containers == null) return 0;
+        int count = 0;
+        for (File container : containers) {
+            if (!role.equals(read(container, "role"))) continue;
+            if (status != null && !status.equals(read(container, "status"))) continue;
+            count++;
+        }
+        return count;
+    }
+
+    private static String read(File container, String name) throws IOException {
+        File file = new File(container, name);
+        return file.exists() ? FileUtils.readFileToString(file).trim() : null;
+    }
+}
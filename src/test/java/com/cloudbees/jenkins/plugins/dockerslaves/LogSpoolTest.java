@@ -0,0 +1,58 @@
+package com.cloudbees.jenkins.plugins.dockerslaves;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayOutputStream;
+
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.*;
+
+public class LogSpoolTest {
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    @Test
+    public void smallLogIsKeptInMemory() throws Exception {
+        LogSpool spool = new LogSpool(tmp.getRoot(), 1024, 4096, 8192);
+        LogSpool.Spool log = spool.create("job");
+        log.write(new byte[512]);
+
+        assertThat(spool.getTotal(), is(0L));
+        assertThat(tmp.getRoot().list(), emptyArray());
+    }
+
+    @Test
+    public void largeLogIsSpooledThenReleased() throws Exception {
+        LogSpool spool = new LogSpool(tmp.getRoot(), 1024, 4096, 8192);
+        LogSpool.Spool log = spool.create("job");
+        log.write(new byte[2048]);
+        log.close();
+
+        assertThat(spool.getTotal(), is(2048L));
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        log.writeTo(out);
+        assertThat(out.size(), is(2048));
+
+        log.delete();
+        assertThat(spool.getTotal(), is(0L));
+        assertThat(tmp.getRoot().list(), emptyArray());
+    }
+
+    @Test
+    public void logIsTruncatedOverLimits() throws Exception {
+        LogSpool spool = new LogSpool(tmp.getRoot(), 1024, 4096, 6144);
+        LogSpool.Spool first = spool.create("first");
+        first.write(new byte[4096]);
+        first.write(new byte[1]);
+        LogSpool.Spool second = spool.create("second");
+        second.write(new byte[3072]);
+
+        // per build limit, then total limit
+        assertThat(spool.getTotal(), is(4096L));
+        first.delete();
+        second.delete();
+        assertThat(spool.getTotal(), is(0L));
+    }
+}
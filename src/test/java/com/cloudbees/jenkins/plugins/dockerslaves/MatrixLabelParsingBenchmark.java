@@ -0,0 +1,33 @@
+package com.cloudbees.jenkins.plugins.dockerslaves;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * {@link MatrixProjectContainersDefinition} label parsing, ran for each matrix configuration entering the queue.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class MatrixLabelParsingBenchmark {
+
+    private static final String LABEL = "jdk=8\\os=linux\\docker:maven:3.3.9-jdk-8\\constraint:storage==ssd";
+
+    private final MatrixProjectContainersDefinition definition = new MatrixProjectContainersDefinition(false);
+
+    @Benchmark
+    public ImageIdContainerDefinition buildHostImage() {
+        return definition.getBuildHostImage(LABEL);
+    }
+
+    @Benchmark
+    public String constraint() {
+        return definition.getConstraint(LABEL);
+    }
+}
@@ -0,0 +1,134 @@
+package com.cloudbees.jenkins.plugins.dockerslaves;
+
+import hudson.Functions;
+import hudson.Launcher;
+import hudson.model.AbstractBuild;
+import hudson.model.BuildListener;
+import hudson.model.FreeStyleBuild;
+import hudson.model.FreeStyleProject;
+import hudson.model.Result;
+import hudson.model.queue.QueueTaskFuture;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.jvnet.hudson.test.JenkinsRule;
+import org.jvnet.hudson.test.TestBuilder;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+import static org.junit.Assume.*;
+
+/**
+ * Push builds through {@link ProvisionQueueListener}, {@link DockerComputerLauncher} and {@link DockerLauncher}
+ * against {@link FakeDocker}, then report throughput, provisioning latency and leaked containers or capacity.
+ * <p>
+ * Disabled unless <code>loadTest.builds</code> is set, run with <code>mvn -Pload-test test</code>.
+ */
+public class ProvisioningLoadTest {
+
+    private static final int BUILDS = Integer.getInteger("loadTest.builds", 0);
+
+    private static final int CAP = Integer.getInteger("loadTest.cap", 10);
+
+    @Rule
+    public JenkinsRule j = new JenkinsRule();
+
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    private FakeDocker docker;
+
+    @Before
+    public void setUp() throws Exception {
+        assumeTrue(BUILDS > 0);
+        assumeFalse(Functions.isWindows());
+
+        docker = new FakeDocker(tmp.newFolder("docker"));
+        docker.install();
+        DockerSlave.setRemoteFS(tmp.newFolder("agent").getAbsolutePath());
+
+        DockerSlaves plugin = DockerSlaves.get();
+        plugin.setDefaultConstraint("");
+        plugin.setContainerCap(CAP);
+    }
+
+    @After
+    public void tearDown() {
+        if (docker != null) docker.uninstall();
+        DockerSlave.setRemoteFS(null);
+    }
+
+    @Test
+    public void provisioning() throws Exception {
+        List<FreeStyleProject> projects = new ArrayList<FreeStyleProject>();
+        for (int i = 0; i < BUILDS; i++) {
+            FreeStyleProject p = j.createFreeStyleProject("load-" + i);
+            p.addProperty(new JobBuildsContainersDefinition(new ImageIdContainerDefinition("busybox", false),
+                    Collections.<SideContainerDefinition>emptyList(), null));
+            p.getBuildersList().add(new BuildStep());
+            projects.add(p);
+        }
+
+        final long start = System.nanoTime();
+        List<QueueTaskFuture<FreeStyleBuild>> builds = new ArrayList<QueueTaskFuture<FreeStyleBuild>>();
+        for (FreeStyleProject p : projects) {
+            builds.add(p.scheduleBuild2(0));
+        }
+
+        int succeeded = 0, failed = 0;
+        for (QueueTaskFuture<FreeStyleBuild> build : builds) {
+            try {
+                if (build.get(10, TimeUnit.MINUTES).getResult() == Result.SUCCESS) {
+                    succeeded++;
+                } else {
+                    failed++;
+                }
+            } catch (CancellationException e) {
+                // provisioning failure
+                failed++;
+            }
+        }
+        final double minutes = (System.nanoTime() - start) / 6e10;
+
+        // wait for slaves to terminate and clean up their pods
+        long deadline = System.currentTimeMillis() + TimeUnit.MINUTES.toMillis(1);
+        while (!j.jenkins.getNodes().isEmpty() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(100);
+        }
+
+        JobBuildsContainersContext context = new JobBuildsContainersContext();
+        context.setConstraint("");
+        final int leakedCapacity = DockerSlaves.get().containerCount.getCount(context);
+        final int leakedContainers = docker.count("build", null) + docker.count("side", null) + docker.count("remoting", "running");
+
+        ProvisioningMetrics.Histogram provisioning = ProvisioningMetrics.get().histogram(ProvisioningMetrics.PROVISIONING, "default");
+        System.out.println(String.format("%d builds (%d succeeded, %d failed) in %.2f min: %.1f builds/min",
+                BUILDS, succeeded, failed, minutes, BUILDS / minutes));
+        System.out.println(String.format("provisioning: p50 %.0f ms, p90 %.0f ms, p99 %.0f ms, max %.0f ms",
+                provisioning.getP50(), provisioning.getP90(), provisioning.getP99(), provisioning.getMax()));
+        System.out.println(String.format("leaked: %d containers, %d capacity slots, %d nodes",
+                leakedContainers, leakedCapacity, j.jenkins.getNodes().size()));
+
+        assertEquals("leaked containers", 0, leakedContainers);
+        assertEquals("leaked capacity slots", 0, leakedCapacity);
+        assertEquals("leaked nodes", 0, j.jenkins.getNodes().size());
+    }
+
+    /**
+     * Run a process, so a build container is created.
+     */
+    private static class BuildStep extends TestBuilder {
+        @Override
+        public boolean perform(AbstractBuild<?, ?> build, Launcher launcher, BuildListener listener) throws InterruptedException, IOException {
+            return launcher.launch().cmds("true").pwd(build.getWorkspace()).stdout(listener).join() == 0;
+        }
+    }
+}
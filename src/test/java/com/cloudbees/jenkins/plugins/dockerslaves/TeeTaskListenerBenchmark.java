@@ -0,0 +1,70 @@
+package com.cloudbees.jenkins.plugins.dockerslaves;
+
+import hudson.util.StreamTaskListener;
+import org.apache.commons.io.output.NullOutputStream;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Throughput of {@link TeeTaskListener} for typical build output: many short lines, and large binary chunks
+ * as written by process output pumps.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class TeeTaskListenerBenchmark {
+
+    private static final String LINE = "[INFO] Downloading: https://repo.maven.apache.org/maven2/org/apache/maven/maven-core/3.3.9/maven-core-3.3.9.pom";
+
+    private final byte[] chunk = new byte[32 * 1024];
+
+    private LogSpool spool;
+
+    private TeeTaskListener listener;
+
+    private PrintStream logger;
+
+    @Setup
+    public void setup() throws IOException {
+        new Random(42).nextBytes(chunk);
+        spool = new LogSpool(Files.createTempDirectory("spool").toFile(), 10 * 1024, 1024 * 1024, 1024 * 1024);
+        listener = new TeeTaskListener(new StreamTaskListener(new NullOutputStream()), spool, "benchmark");
+        listener.setSideOutputStream(new NullOutputStream());
+        logger = listener.getLogger();
+    }
+
+    @TearDown
+    public void tearDown() {
+        listener.release();
+        spool.cleanup();
+    }
+
+    @Benchmark
+    public void lineHeavy() {
+        logger.println(LINE);
+    }
+
+    @Benchmark
+    @Threads(4)
+    public void lineHeavyContended() {
+        logger.println(LINE);
+    }
+
+    @Benchmark
+    public void bulkBinary() {
+        logger.write(chunk, 0, chunk.length);
+    }
+}
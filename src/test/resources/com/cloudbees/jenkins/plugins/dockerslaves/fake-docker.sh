@@ -0,0 +1,201 @@
+#!/usr/bin/env bash
+#
+# Fake docker CLI, for provisioning tests without a docker daemon. Containers state is kept as directories in
+# ./state next to this script. Remoting containers really run slave.jar, as copied in by `docker cp`, other
+# containers only pretend to run.
+#
+# Optional ./fake-docker.conf (sourced) configures behaviour, per operation or globally:
+#   LATENCY_create=0.5   seconds to sleep before running `docker create` (LATENCY for all operations)
+#   FAIL_start=10        percentage of `docker start` to fail (FAIL for all operations)
+#   BUILD_DURATION=1     seconds a build container runs
+#   BUILD_EXIT=0         build container exit code
+# `docker volume ls` is configured as LATENCY_volume_ls.
+
+HERE="$(cd "$(dirname "$0")" && pwd)"
+STATE="$HERE/state"
+mkdir -p "$STATE/containers" "$STATE/volumes"
+[ -f "$HERE/fake-docker.conf" ] && . "$HERE/fake-docker.conf"
+
+while [ $# -gt 0 ]; do
+    case "$1" in
+        -H) shift 2 ;;
+        *) break ;;
+    esac
+done
+
+op="$1"; shift
+if [ "$op" = "volume" ]; then
+    op="volume_$1"; shift
+fi
+
+latency_var="LATENCY_$op"
+latency="${!latency_var:-${LATENCY:-0}}"
+fail_var="FAIL_$op"
+fail="${!fail_var:-${FAIL:-0}}"
+
+if [ "$latency" != "0" ]; then
+    sleep "$latency"
+fi
+if [ "$fail" -gt 0 ] && [ $((RANDOM % 100)) -lt "$fail" ]; then
+    echo "fake-docker: injected failure for $op" >&2
+    exit 1
+fi
+
+new_id() {
+    head -c 32 /dev/urandom | od -An -tx1 | tr -d ' \n'
+}
+
+container_dir() {
+    local dir="$STATE/containers/$1"
+    if [ ! -d "$dir" ]; then
+        echo "Error: No such container: $1" >&2
+        exit 1
+    fi
+    echo "$dir"
+}
+
+role_of_label() {
+    case "$1" in
+        jenkins-remoting=true) echo remoting ;;
+        jenkins-build=true) echo build ;;
+        jenkins-side=true) echo side ;;
+    esac
+}
+
+do_create() {
+    local role=other volumes=""
+    while [ $# -gt 0 ]; do
+        local label=""
+        case "$1" in
+            --label=*) label="${1#--label=}" ;;
+            --label) label="$2"; shift ;;
+            -v|--volume) volumes="$volumes ${2%%:*}"; shift ;;
+            --env|-e|--workdir|-w|--volumes-from|--user|-u|--name|--entrypoint) shift ;;
+            -*) ;;
+            *) break ;;
+        esac
+        if [ -n "$label" ]; then
+            role="$(role_of_label "$label")"
+        fi
+        shift
+    done
+
+    local id dir
+    id="$(new_id)"
+    dir="$STATE/containers/$id"
+    mkdir -p "$dir/fs/etc" "$dir/fs/home/jenkins"
+    echo "root:x:0:" > "$dir/fs/etc/group"
+    echo "root:x:0:0:root:/root:/bin/sh" > "$dir/fs/etc/passwd"
+    echo "$1" > "$dir/image"
+    echo "$role" > "$dir/role"
+    printf '%s\n' $volumes > "$dir/volumes"
+    echo created > "$dir/status"
+    echo "$id"
+}
+
+do_start() {
+    local id dir
+    id="${!#}"
+    dir="$(container_dir "$id")" || exit 1
+    echo running > "$dir/status"
+    case "$(cat "$dir/role")" in
+        remoting)
+            java -jar "$dir/fs/home/jenkins/slave.jar"
+            local status=$?
+            [ -d "$dir" ] && echo exited > "$dir/status"
+            exit $status
+            ;;
+        build)
+            sleep "${BUILD_DURATION:-0}"
+            [ -d "$dir" ] && echo exited > "$dir/status"
+            exit "${BUILD_EXIT:-0}"
+            ;;
+    esac
+}
+
+do_ps() {
+    local role="" status="" volume=""
+    while [ $# -gt 0 ]; do
+        case "$1" in
+            --filter)
+                case "$2" in
+                    label=*) role="$(role_of_label "${2#label=}")" ;;
+                    status=*) status="${2#status=}" ;;
+                    volume=*) volume="${2#volume=}" ;;
+                esac
+                shift ;;
+        esac
+        shift
+    done
+    for dir in "$STATE"/containers/*; do
+        [ -d "$dir" ] || continue
+        [ -z "$role" ] || [ "$(cat "$dir/role")" = "$role" ] || continue
+        [ -z "$status" ] || [ "$(cat "$dir/status")" = "$status" ] || continue
+        [ -z "$volume" ] || grep -qxF "$volume" "$dir/volumes" 2>/dev/null || continue
+        basename "$dir"
+    done
+}
+
+case "$op" in
+    create)
+        do_create "$@"
+        ;;
+    start)
+        do_start "$@"
+        ;;
+    stop)
+        dir="$(container_dir "${!#}")" || exit 1
+        echo exited > "$dir/status"
+        ;;
+    rm)
+        id="${!#}"
+        container_dir "$id" > /dev/null || exit 1
+        rm -rf "$STATE/containers/$id"
+        echo "$id"
+        ;;
+    inspect)
+        target="${!#}"
+        if [ -d "$STATE/containers/$target" ]; then
+            echo "$target"
+        elif [[ "$target" =~ ^[0-9a-f]{64}$ ]]; then
+            echo "Error: No such container: $target" >&2
+            exit 1
+        else
+            # any image exists
+            echo "sha256:$(echo "$target" | od -An -tx1 | tr -d ' \n' | head -c 64)"
+        fi
+        ;;
+    cp)
+        if [ "$1" = "-" ]; then
+            dir="$(container_dir "${2%%:*}")" || exit 1
+            path="${2#*:}"
+            mkdir -p "$dir/fs$path"
+            tar -C "$dir/fs$path" -xf -
+        else
+            dir="$(container_dir "${1%%:*}")" || exit 1
+            path="${1#*:}"
+            tar -C "$dir/fs$(dirname "$path")" -cf - "$(basename "$path")"
+        fi
+        ;;
+    ps)
+        do_ps "$@"
+        ;;
+    run)
+        # helper containers: volume init, size, workspace fork
+        if [[ " $* " == *" du "* ]]; then
+            printf '0\t/mnt/volume\n'
+        fi
+        ;;
+    volume_ls)
+        ls "$STATE/volumes"
+        ;;
+    volume_rm)
+        rm -rf "$STATE/volumes/${!#}"
+        ;;
+    pull|build|version)
+        ;;
+    *)
+        echo "fake-docker: unsupported command $op" >&2
+        exit 1
+        ;;
+esac